@@ -0,0 +1,157 @@
+package com.flightstats.http;
+
+import com.flightstats.util.UUIDGenerator;
+import com.github.rholder.retry.Retryer;
+import com.github.rholder.retry.RetryerBuilder;
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request path of HttpTemplate against an in-process loopback server, for raw byte bodies and
+ * Gson-mapped bodies of several sizes. The *Contended variants run the same call from 8 threads sharing one
+ * template and one connection pool.
+ * <p>
+ * Run with {@code gradle jmh}, which adds {@code -prof gc} for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpTemplateBenchmark {
+    private static final Type FLIGHTS = new TypeToken<List<Flight>>() {
+    }.getType();
+
+    public enum BodySize {
+        SMALL(256), MEDIUM(16 * 1024), LARGE(1024 * 1024);
+
+        final int bytes;
+
+        BodySize(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public BodySize bodySize;
+
+    private StubServer server;
+    private CloseableHttpClient client;
+    private HttpTemplate httpTemplate;
+    private URI uri;
+    private List<Flight> flights;
+    private byte[] rawBody;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Gson gson = new Gson();
+        flights = flights(bodySize.bytes, gson);
+        rawBody = gson.toJson(flights).getBytes(Charsets.UTF_8);
+        server = new StubServer(rawBody, HttpTemplate.APPLICATION_JSON);
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(64);
+        connectionManager.setDefaultMaxPerRoute(64);
+        client = HttpClients.custom().setConnectionManager(connectionManager).build();
+        Retryer<Response> retryer = RetryerBuilder.<Response>newBuilder().build();
+        httpTemplate = new HttpTemplate(client, gson, retryer, new UUIDGenerator());
+        uri = server.uri("/flights");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Benchmark
+    public Response getRaw() {
+        return httpTemplate.get(uri);
+    }
+
+    @Benchmark
+    public List<Flight> getGson() {
+        return httpTemplate.get(uri, FLIGHTS);
+    }
+
+    @Benchmark
+    public Response postRaw() {
+        return httpTemplate.post(uri, rawBody, HttpTemplate.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public Response postGson() {
+        return httpTemplate.postWithResponse(uri.toString(), flights, response -> {
+        });
+    }
+
+    @Benchmark
+    public Response putRaw() {
+        return httpTemplate.put(uri, rawBody, HttpTemplate.APPLICATION_JSON);
+    }
+
+    @Benchmark
+    public Response putGson() {
+        return httpTemplate.put(uri, flights);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Response getRawContended() {
+        return httpTemplate.get(uri);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public List<Flight> getGsonContended() {
+        return httpTemplate.get(uri, FLIGHTS);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Response postRawContended() {
+        return httpTemplate.post(uri, rawBody, HttpTemplate.APPLICATION_JSON);
+    }
+
+    /**
+     * Builds a deterministic list of flights whose JSON form is roughly the requested number of bytes.
+     */
+    private static List<Flight> flights(int approximateBytes, Gson gson) {
+        Random random = new Random(42);
+        List<Flight> result = new ArrayList<>();
+        int perFlight = gson.toJson(new Flight("AA", 1000, 1512000000000L, "SCHEDULED")).length() + 1;
+        for (int i = 0; i < Math.max(1, approximateBytes / perFlight); i++) {
+            result.add(new Flight(random.nextBoolean() ? "AA" : "UA", random.nextInt(9000) + 1000,
+                    1512000000000L + random.nextInt(86_400_000), random.nextBoolean() ? "SCHEDULED" : "LANDED"));
+        }
+        return result;
+    }
+
+    public static class Flight {
+        String carrier;
+        int number;
+        long departure;
+        String status;
+
+        Flight(String carrier, int number, long departure, String status) {
+            this.carrier = carrier;
+            this.number = number;
+            this.departure = departure;
+            this.status = status;
+        }
+    }
+}
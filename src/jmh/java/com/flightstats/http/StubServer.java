@@ -0,0 +1,60 @@
+package com.flightstats.http;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A loopback-only HTTP server for benchmarking. GET returns a fixed body; POST and PUT echo the request body back.
+ * Nothing leaves the machine, so runs are reproducible offline.
+ */
+class StubServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    StubServer(byte[] getBody, String contentType) throws IOException {
+        // without this the JDK server waits on delayed ACKs, and every request measures ~40ms of nothing.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        executor = Executors.newFixedThreadPool(16);
+        server.setExecutor(executor);
+        server.createContext("/", exchange -> {
+            try {
+                byte[] body = "GET".equals(exchange.getRequestMethod()) ? getBody : readBody(exchange);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
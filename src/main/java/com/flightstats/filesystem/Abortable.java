@@ -0,0 +1,9 @@
+package com.flightstats.filesystem;
+
+/**
+ * An output stream that can be given up on. Abort drops what was written, where close would commit it, and frees
+ * whatever the stream holds.
+ */
+interface Abortable {
+    void abort();
+}
@@ -0,0 +1,35 @@
+package com.flightstats.filesystem;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of {@link FileSystem}. Calls return immediately; the work is queued and run with
+ * bounded concurrency, so issuing thousands of calls doesn't mean thousands of threads. Failures complete the
+ * future exceptionally with the exception the blocking call would have thrown.
+ */
+public interface AsyncFileSystem {
+    CompletableFuture<byte[]> readBytes(Path fileName);
+
+    CompletableFuture<String> readContents(Path fileName);
+
+    CompletableFuture<Void> saveContent(String content, Path fileName);
+
+    CompletableFuture<Void> saveContent(byte[] content, Path fileName, String contentType);
+
+    CompletableFuture<Boolean> exists(Path fileName);
+
+    CompletableFuture<Optional<FileMetadata>> stat(Path fileName);
+
+    CompletableFuture<Map<Path, FileMetadata>> statAll(Collection<Path> fileNames);
+
+    CompletableFuture<List<Path>> listFiles(Path prefixPath);
+
+    CompletableFuture<Void> move(Path file, Path destinationDirectory);
+
+    CompletableFuture<Void> delete(Path fileName);
+}
@@ -0,0 +1,41 @@
+package com.flightstats.filesystem;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The outcome of a bulk operation: the paths it was applied to, and the reason for each one it failed on.
+ */
+@Value
+public class BatchResult {
+    List<Path> succeeded;
+    Map<Path, Exception> failed;
+
+    public boolean isComplete() {
+        return failed.isEmpty();
+    }
+
+    /**
+     * Applies the operation to each path in turn, collecting failures instead of stopping at the first one.
+     */
+    static BatchResult each(Collection<Path> paths, Consumer<Path> operation) {
+        List<Path> succeeded = new ArrayList<>(paths.size());
+        Map<Path, Exception> failed = new LinkedHashMap<>();
+        for (Path path : paths) {
+            try {
+                operation.accept(path);
+                succeeded.add(path);
+            } catch (RuntimeException e) {
+                failed.put(path, e);
+            }
+        }
+        return new BatchResult(succeeded, failed);
+    }
+}
@@ -0,0 +1,230 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Runs the blocking calls of a FileSystem on an executor, with at most maxConcurrent of them running at once.
+ * Calls beyond that wait in an unbounded queue instead of blocking the caller or taking another thread, so the
+ * executor can be shared with other work.
+ * <p>
+ * A call gives up its slot before its future is completed, so callbacks chained onto the future, which run on the
+ * completing thread, never hold a slot. A call the executor rejects fails its future with the
+ * RejectedExecutionException.
+ */
+public class BoundedAsyncFileSystem implements AsyncFileSystem, Closeable {
+    private final FileSystem fileSystem;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final int maxConcurrent;
+    private final Queue<Call<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Uses its own pool of daemon threads, which {@link #close} shuts down. Threads are started as needed rather
+     * than fixed at maxConcurrent, so a callback that blocks on the completing thread doesn't starve the calls.
+     */
+    public BoundedAsyncFileSystem(FileSystem fileSystem, int maxConcurrent) {
+        this(fileSystem, Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("async-fs-%d").build()), maxConcurrent, true);
+    }
+
+    public BoundedAsyncFileSystem(FileSystem fileSystem, Executor executor, int maxConcurrent) {
+        this(fileSystem, executor, maxConcurrent, false);
+    }
+
+    private BoundedAsyncFileSystem(FileSystem fileSystem, Executor executor, int maxConcurrent, boolean ownsExecutor) {
+        this.fileSystem = fileSystem;
+        this.executor = executor;
+        this.ownExecutor = ownsExecutor ? (ExecutorService) executor : null;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    /**
+     * Fails the calls still waiting for a slot, and any made from now on. Calls already running finish. The pool is
+     * shut down if this created it; an executor passed in is left alone.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Call<?> call;
+        while ((call = queue.poll()) != null) {
+            call.reject(new RejectedExecutionException("closed"));
+        }
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * The number of calls waiting for a slot.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getRunningCount() {
+        return running.get();
+    }
+
+    @Override
+    public CompletableFuture<byte[]> readBytes(Path fileName) {
+        return submit(() -> {
+            try (InputStream in = fileSystem.inputStream(fileName)) {
+                return ByteStreams.toByteArray(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> readContents(Path fileName) {
+        return submit(() -> fileSystem.readContents(fileName));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveContent(String content, Path fileName) {
+        return saveContent(content.getBytes(UTF_8), fileName, null);
+    }
+
+    @Override
+    public CompletableFuture<Void> saveContent(byte[] content, Path fileName, String contentType) {
+        return run(() -> fileSystem.saveContent(content, fileName, contentType));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(Path fileName) {
+        return submit(() -> fileSystem.exists(fileName));
+    }
+
+    @Override
+    public CompletableFuture<Optional<FileMetadata>> stat(Path fileName) {
+        return submit(() -> fileSystem.stat(fileName));
+    }
+
+    @Override
+    public CompletableFuture<Map<Path, FileMetadata>> statAll(Collection<Path> fileNames) {
+        return submit(() -> fileSystem.statAll(fileNames));
+    }
+
+    @Override
+    public CompletableFuture<List<Path>> listFiles(Path prefixPath) {
+        return submit(() -> fileSystem.listFiles(prefixPath));
+    }
+
+    @Override
+    public CompletableFuture<Void> move(Path file, Path destinationDirectory) {
+        return run(() -> fileSystem.move(file, destinationDirectory));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(Path fileName) {
+        return run(() -> fileSystem.delete(fileName));
+    }
+
+    private CompletableFuture<Void> run(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        Call<T> call = new Call<>(task);
+        queue.add(call);
+        drain();
+        return call.future;
+    }
+
+    /**
+     * Starts queued calls while there are free slots. Every finished call drains again, so nothing is left waiting
+     * while a slot is free.
+     */
+    private void drain() {
+        while (!queue.isEmpty()) {
+            int current = running.get();
+            if (current >= maxConcurrent) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Call<?> next = queue.poll();
+            if (next == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            if (closed) {
+                running.decrementAndGet();
+                next.reject(new RejectedExecutionException("closed"));
+                continue;
+            }
+            try {
+                executor.execute(() -> {
+                    Runnable completion;
+                    try {
+                        completion = next.run();
+                    } finally {
+                        running.decrementAndGet();
+                        drain();
+                    }
+                    completion.run();
+                });
+            } catch (RejectedExecutionException e) {
+                running.decrementAndGet();
+                next.reject(e);
+            }
+        }
+    }
+
+    /**
+     * A queued call and the future it completes.
+     */
+    private static class Call<T> {
+        private final Supplier<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Call(Supplier<T> task) {
+            this.task = task;
+        }
+
+        /**
+         * Makes the call, and returns what completes its future, to be run once the slot has been given up.
+         */
+        Runnable run() {
+            try {
+                T result = task.get();
+                return () -> future.complete(result);
+            } catch (Throwable t) {
+                return () -> future.completeExceptionally(t);
+            }
+        }
+
+        void reject(RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.flightstats.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles ByteBuffers of the same capacity, so that streams which repeatedly need large buffers don't churn the
+ * heap. At most maxPooledBytes are held idle; anything returned beyond that is left to the garbage collector.
+ */
+class BufferPool {
+    private final boolean direct;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final ConcurrentMap<Integer, Queue<ByteBuffer>> free = new ConcurrentHashMap<>();
+
+    BufferPool(boolean direct, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns a cleared buffer of exactly the given capacity.
+     */
+    ByteBuffer acquire(int capacity) {
+        Queue<ByteBuffer> queue = free.get(capacity);
+        ByteBuffer buffer = queue == null ? null : queue.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        pooledBytes.addAndGet(-capacity);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back for reuse. The caller must not touch it afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        free.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+}
@@ -0,0 +1,305 @@
+package com.flightstats.filesystem;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * A read-through cache of file contents in front of another FileSystem, typically S3.
+ * <p>
+ * Bodies are kept on local disk, and optionally small ones in memory, keyed by path plus version (the ETag, or the
+ * size and modification time if the delegate has no ETag). Every read costs one stat of the delegate, which is a HEAD
+ * on S3, so a changed object is never served stale. Each tier evicts least-recently-used entries by total bytes.
+ * Concurrent misses for the same key wait for a single download, and a download is cached under the version its
+ * own response reports, so an object that changes mid-read is never cached under the old version. Writes and moves
+ * through this instance invalidate the affected entries.
+ * <p>
+ * The cache index lives in memory, so files left in cacheDirectory by an earlier run are deleted on startup.
+ */
+public class CachingFileSystem extends ForwardingFileSystem {
+    private final static Logger logger = LoggerFactory.getLogger(CachingFileSystem.class);
+    private static final String PARTIAL = ".partial";
+    private static final Pattern CACHE_FILE_NAME = Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}(\\.partial)?");
+
+    private final Path cacheDirectory;
+    private final long maxMemoryObjectSize;
+    private final Cache<CacheKey, Path> diskCache;
+    private final Cache<CacheKey, byte[]> memoryCache;
+
+    /**
+     * Disk cache only.
+     */
+    public CachingFileSystem(FileSystem delegate, Path cacheDirectory, long maxDiskBytes) {
+        this(delegate, cacheDirectory, maxDiskBytes, 0, 0);
+    }
+
+    /**
+     * @param maxMemoryBytes      total size of the in-memory tier.
+     * @param maxMemoryObjectSize objects no larger than this are kept in memory instead of on disk.
+     */
+    public CachingFileSystem(FileSystem delegate, Path cacheDirectory, long maxDiskBytes, long maxMemoryBytes, long maxMemoryObjectSize) {
+        super(delegate);
+        this.cacheDirectory = cacheDirectory;
+        this.maxMemoryObjectSize = maxMemoryObjectSize;
+        cacheDirectory.toFile().mkdirs();
+        deleteLeftovers();
+        RemovalListener<CacheKey, Path> deleteFile = notification -> deleteQuietly(notification.getValue());
+        this.diskCache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(1, maxDiskBytes / 1024))
+                .<CacheKey, Path>weigher((key, file) -> kilobytes(file))
+                .removalListener(deleteFile)
+                .recordStats()
+                .build();
+        this.memoryCache = CacheBuilder.newBuilder()
+                .maximumWeight(Math.max(0, maxMemoryBytes))
+                .<CacheKey, byte[]>weigher((key, bytes) -> bytes.length)
+                .recordStats()
+                .build();
+    }
+
+    public CacheStats getDiskCacheStats() {
+        return diskCache.stats();
+    }
+
+    public CacheStats getMemoryCacheStats() {
+        return memoryCache.stats();
+    }
+
+    /**
+     * Drops every cached body.
+     */
+    public void invalidateAll() {
+        diskCache.invalidateAll();
+        memoryCache.invalidateAll();
+    }
+
+    @Override
+    public InputStream inputStream(Path fileName) {
+        FileMetadata metadata = delegate().stat(fileName)
+                .orElseThrow(() -> new UncheckedIOException(new FileNotFoundException("file not found: " + fileName)));
+        CacheKey key = new CacheKey(fileName, version(metadata));
+        try {
+            if (metadata.getSize() <= maxMemoryObjectSize) {
+                return new ByteArrayInputStream(cached(memoryCache, key, () -> download(key)));
+            }
+            try {
+                return new FileInputStream(cached(diskCache, key, () -> downloadToDisk(key)).toFile());
+            } catch (FileNotFoundException e) {
+                //evicted between lookup and open. fetch it again.
+                diskCache.invalidate(key);
+                return new FileInputStream(cached(diskCache, key, () -> downloadToDisk(key)).toFile());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the key through the cache. If the object turned out to have changed since the stat, the download is
+     * cached under the version it actually is, and returned.
+     */
+    @SuppressWarnings("unchecked")
+    private <V> V cached(Cache<CacheKey, V> cache, CacheKey key, Callable<V> loader) throws IOException {
+        try {
+            return cache.get(key, loader);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VersionChanged) {
+                VersionChanged changed = (VersionChanged) e.getCause();
+                V content = (V) changed.content;
+                cache.put(changed.actual, content);
+                return content;
+            }
+            Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+            throw new IOException("Unable to cache " + key.getPath(), e.getCause());
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        try (InputStream in = inputStream(fileName)) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return RecordReader.lines(inputStream(fileName), charset);
+    }
+
+    @Override
+    public Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return new RecordReader(inputStream(fileName), format).stream();
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        invalidate(fileName::equals);
+        return onClose(delegate().outputStream(fileName, contentType), () -> invalidate(fileName::equals));
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        saveContent(content, fileName, null);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        saveContent(content.getBytes(UTF_8), fileName, contentType);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        invalidate(fileName::equals);
+        delegate().saveContent(content, fileName, contentType);
+    }
+
+    @Override
+    public void move(Path file, Path destinationDirectory) {
+        Path destination = destinationDirectory.resolve(file.getFileName());
+        invalidate(path -> path.equals(file) || path.equals(destination));
+        delegate().move(file, destinationDirectory);
+    }
+
+    @Override
+    public BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        Set<Path> affected = new HashSet<>(files);
+        files.forEach(file -> affected.add(destinationDirectory.resolve(file.getFileName())));
+        invalidate(affected::contains);
+        return delegate().moveAll(files, destinationDirectory);
+    }
+
+    @Override
+    public void delete(Path fileName) {
+        invalidate(fileName::equals);
+        delegate().delete(fileName);
+    }
+
+    @Override
+    public BatchResult deleteAll(Collection<Path> fileNames) {
+        invalidate(fileNames::contains);
+        return delegate().deleteAll(fileNames);
+    }
+
+    private void invalidate(Predicate<Path> paths) {
+        memoryCache.asMap().keySet().removeIf(key -> paths.test(key.getPath()));
+        diskCache.asMap().keySet().removeIf(key -> paths.test(key.getPath()));
+    }
+
+    private byte[] download(CacheKey key) throws IOException, VersionChanged {
+        AtomicReference<FileMetadata> read = new AtomicReference<>();
+        byte[] content;
+        try (InputStream in = delegate().inputStream(key.getPath(), read::set)) {
+            content = ByteStreams.toByteArray(in);
+        }
+        checkVersion(key, read.get(), content);
+        return content;
+    }
+
+    private Path downloadToDisk(CacheKey key) throws IOException, VersionChanged {
+        String name = UUID.randomUUID().toString();
+        Path partial = cacheDirectory.resolve(name + PARTIAL);
+        AtomicReference<FileMetadata> read = new AtomicReference<>();
+        Path file;
+        try (InputStream in = delegate().inputStream(key.getPath(), read::set)) {
+            Files.copy(in, partial);
+            file = Files.move(partial, cacheDirectory.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        checkVersion(key, read.get(), file);
+        return file;
+    }
+
+    private static void checkVersion(CacheKey key, FileMetadata read, Object content) throws VersionChanged {
+        if (read != null && !key.getVersion().equals(version(read))) {
+            throw new VersionChanged(new CacheKey(key.getPath(), version(read)), content);
+        }
+    }
+
+    /**
+     * Deletes the cache files, and partial downloads, an earlier run left behind. Other files are left alone.
+     */
+    private void deleteLeftovers() {
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            files.filter(file -> CACHE_FILE_NAME.matcher(file.getFileName().toString()).matches())
+                    .forEach(CachingFileSystem::deleteQuietly);
+        } catch (IOException e) {
+            logger.warn("Unable to clear cache directory " + cacheDirectory, e);
+        }
+    }
+
+    private static String version(FileMetadata metadata) {
+        if (metadata.getETag() != null) {
+            return metadata.getETag();
+        }
+        return metadata.getSize() + ":" + metadata.getLastModified();
+    }
+
+    private static int kilobytes(Path file) {
+        return (int) Math.min(Integer.MAX_VALUE, file.toFile().length() / 1024 + 1);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Unable to delete cached file " + file, e);
+        }
+    }
+
+    /**
+     * The object changed between the stat and the download. Carries what was downloaded, and its real version.
+     */
+    private static class VersionChanged extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final transient CacheKey actual;
+        private final transient Object content;
+
+        VersionChanged(CacheKey actual, Object content) {
+            super(null, null, false, false);
+            this.actual = actual;
+            this.content = content;
+        }
+    }
+
+    @Value
+    private static class CacheKey {
+        Path path;
+        String version;
+    }
+}
@@ -0,0 +1,165 @@
+package com.flightstats.filesystem;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Gzips files on the way into another FileSystem and gunzips them on the way out. A file is compressed if its name
+ * ends in .gz or .gzip; everything else passes through untouched. Only the name is checked, on writes as on reads,
+ * so every file round-trips: a gzip content type on its own doesn't compress, since it couldn't be seen on the way
+ * back out.
+ * <p>
+ * Writes are compressed across all cores in independent blocks (see {@link ParallelGzipOutputStream}), and the
+ * compressed bytes go straight into the delegate's output stream, which for S3 is the multipart upload. Ranged reads,
+ * stat and listings see the stored, compressed files.
+ */
+public class CompressingFileSystem extends ForwardingFileSystem implements Closeable {
+    private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private final int threads;
+    private final int blockSize;
+    private final Supplier<ExecutorService> executor;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    public CompressingFileSystem(FileSystem delegate) {
+        this(delegate, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param threads   the number of blocks compressed at once.
+     * @param blockSize the amount of input compressed into each gzip member.
+     */
+    public CompressingFileSystem(FileSystem delegate, int threads, int blockSize) {
+        super(delegate);
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.executor = Suppliers.memoize(() -> {
+            started.set(true);
+            return Executors.newFixedThreadPool(threads,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("gzip-%d").build());
+        });
+    }
+
+    /**
+     * Shuts down the compression pool, if it was ever started. Blocks already being compressed finish; the delegate
+     * isn't closed.
+     */
+    @Override
+    public void close() {
+        if (started.get()) {
+            executor.get().shutdown();
+        }
+    }
+
+    private static boolean isCompressed(Path fileName) {
+        String name = fileName.getFileName().toString();
+        return name.endsWith(".gz") || name.endsWith(".gzip");
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        OutputStream out = delegate().outputStream(fileName, contentType);
+        return isCompressed(fileName) ? compressing(out) : out;
+    }
+
+    private OutputStream compressing(OutputStream out) {
+        return new ParallelGzipOutputStream(out, executor.get(), blockSize, threads * 2);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        saveContent(content, fileName, null);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        saveContent(content.getBytes(UTF_8), fileName, contentType);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        if (!isCompressed(fileName)) {
+            delegate().saveContent(content, fileName, contentType);
+            return;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (OutputStream out = compressing(compressed)) {
+            out.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        delegate().saveContent(compressed.toByteArray(), fileName, contentType);
+    }
+
+    @Override
+    public InputStream inputStream(Path fileName) {
+        InputStream in = delegate().inputStream(fileName);
+        if (!isCompressed(fileName)) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            try {
+                in.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        if (!isCompressed(fileName)) {
+            return delegate().readContents(fileName);
+        }
+        try (InputStream in = inputStream(fileName)) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return isCompressed(fileName) ? RecordReader.lines(inputStream(fileName), charset) : delegate().lines(fileName, charset);
+    }
+
+    @Override
+    public Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return isCompressed(fileName) ? new RecordReader(inputStream(fileName), format).stream() : delegate().records(fileName, format);
+    }
+
+    /**
+     * Copies the stored bytes, so a compressed file arrives compressed, and isn't compressed twice when copied
+     * within this file system.
+     */
+    @Override
+    public void transferTo(Path source, FileSystem destinationFileSystem, Path destination) {
+        delegate().transferTo(source, destinationFileSystem == this ? delegate() : destinationFileSystem, destination);
+    }
+}
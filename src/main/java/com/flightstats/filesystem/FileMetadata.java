@@ -0,0 +1,26 @@
+package com.flightstats.filesystem;
+
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.time.Instant;
+
+/**
+ * What a {@link FileSystem} knows about a file without reading it.
+ */
+@Value
+public class FileMetadata {
+    Path path;
+    long size;
+    Instant lastModified;
+
+    /**
+     * A checksum of the content, if the file system keeps one (the ETag on S3). May be null.
+     */
+    String eTag;
+
+    /**
+     * May be null if the file system doesn't know.
+     */
+    String contentType;
+}
@@ -1,9 +1,24 @@
 package com.flightstats.filesystem;
 
+import com.google.common.io.ByteStreams;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface FileSystem {
     OutputStream outputStream(Path fileName);
@@ -12,10 +27,65 @@ public interface FileSystem {
 
     InputStream inputStream(Path fileName);
 
+    /**
+     * Opens the file, first passing the metadata of the version being read to the callback. Where the file system
+     * can, it comes from the same request as the content (the GET on S3), so the two always agree. By default it is
+     * a stat taken just before opening.
+     */
+    default InputStream inputStream(Path fileName, Consumer<FileMetadata> version) {
+        version.accept(stat(fileName).orElseThrow(() -> new UncheckedIOException(new FileNotFoundException("file not found: " + fileName))));
+        return inputStream(fileName);
+    }
+
     String readContents(Path fileName);
 
+    /**
+     * A lazy stream of the file's lines, read through a fixed-size buffer. Close the stream to release the file.
+     */
+    default Stream<String> lines(Path fileName, Charset charset) {
+        return RecordReader.lines(inputStream(fileName), charset);
+    }
+
+    /**
+     * A lazy stream of the file's records. Close the stream to release the file.
+     */
+    default Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return new RecordReader(inputStream(fileName), format).stream();
+    }
+
+    /**
+     * Reads up to length bytes starting at offset, without reading the rest of the file. The buffer holds fewer
+     * bytes only if the file ends first, and none if offset is at or past the end.
+     */
+    ByteBuffer read(Path fileName, long offset, int length);
+
+    /**
+     * A read-only channel that fetches only the parts of the file that are read. Small reads are served from
+     * 64KB blocks fetched with {@link #read}.
+     */
+    default SeekableByteChannel readChannel(Path fileName) {
+        FileMetadata metadata = stat(fileName)
+                .orElseThrow(() -> new UncheckedIOException(new FileNotFoundException("file not found: " + fileName)));
+        return new RangedReadChannel(this, fileName, metadata.getSize(), 64 * 1024);
+    }
+
     boolean exists(Path fileName);
 
+    /**
+     * Returns the size, modification time, checksum and content type of the file, or empty if it doesn't exist.
+     */
+    Optional<FileMetadata> stat(Path fileName);
+
+    /**
+     * Stats all of the files, returning metadata for the ones that exist. Implementations may run the lookups
+     * concurrently.
+     */
+    default Map<Path, FileMetadata> statAll(Collection<Path> fileNames) {
+        Map<Path, FileMetadata> result = new LinkedHashMap<>();
+        fileNames.forEach(fileName -> stat(fileName).ifPresent(metadata -> result.put(fileName, metadata)));
+        return result;
+    }
+
     void saveContent(String content, Path fileName);
 
     void saveContent(String content, Path fileName, String contentType);
@@ -28,5 +98,73 @@ public interface FileSystem {
      */
     List<Path> listFiles(Path prefixPath);
 
+    /**
+     * The same paths as listFiles, but produced lazily, so huge listings never have to fit in memory. Close the
+     * stream if you don't consume all of it.
+     */
+    default Stream<Path> streamFiles(Path prefixPath) {
+        return listFiles(prefixPath).stream();
+    }
+
+    /**
+     * The same paths as listFiles, but the listing is split into shards that are listed concurrently. If sorted is
+     * false the paths come back in no particular order, which saves the final sort.
+     */
+    default List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        List<Path> files = new ArrayList<>(listFiles(prefixPath));
+        if (sorted) {
+            files.sort(null);
+        }
+        return files;
+    }
+
+    /**
+     * The metadata of the files listFiles would return. File systems whose listings already carry sizes and dates,
+     * as S3's do, answer from the listing without a request per file; by default every file is stat'ed. Close the
+     * stream if you don't consume all of it.
+     */
+    default Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        return statAll(listFiles(prefixPath)).values().stream();
+    }
+
+    /**
+     * Returns the immediate subdirectories of the given directory, without walking anything beneath them. On S3,
+     * these are the common prefixes of a '/'-delimited listing. If the directory does not exist, an empty List will
+     * be returned.
+     */
+    List<Path> listDirectories(Path directory);
+
     void move(Path file, Path destinationDirectory);
+
+    /**
+     * Copies the file to the destination path on the destination file system, which may be this one. By default
+     * the bytes are streamed through; implementations use faster paths where both ends allow it.
+     */
+    default void transferTo(Path source, FileSystem destinationFileSystem, Path destination) {
+        try (InputStream in = inputStream(source); OutputStream out = destinationFileSystem.outputStream(destination)) {
+            ByteStreams.copy(in, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Moves each file into the destination directory, as move does. A failure on one file doesn't stop the others;
+     * it is reported in the result.
+     */
+    default BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        return BatchResult.each(files, file -> move(file, destinationDirectory));
+    }
+
+    /**
+     * Deleting a file that doesn't exist is not an error.
+     */
+    void delete(Path fileName);
+
+    /**
+     * Deletes all of the files. A failure on one file doesn't stop the others; it is reported in the result.
+     */
+    default BatchResult deleteAll(Collection<Path> fileNames) {
+        return BatchResult.each(fileNames, this::delete);
+    }
 }
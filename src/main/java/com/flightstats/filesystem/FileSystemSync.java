@@ -0,0 +1,259 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.SneakyThrows;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Mirrors a directory of one FileSystem into a directory of another, copying only the files that are missing or
+ * differ. Both sides are listed up front with {@link FileSystem#streamFileMetadata}, which on S3 takes sizes, dates
+ * and ETags from the listing itself rather than a HEAD per file. Comparisons and copies then run on parallelism
+ * threads, with at most twice that many files handed to them at a time, and each copy goes through
+ * {@link FileSystem#transferTo}, so it streams, or takes a faster path where there is one. An empty directory path
+ * syncs the whole file system.
+ * <p>
+ * A failure on one file doesn't stop the others; it is reported in the result. Progress is logged every few seconds.
+ */
+public class FileSystemSync {
+    private final static Logger logger = LoggerFactory.getLogger(FileSystemSync.class);
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+
+    /**
+     * How a source file is judged to be already present at the destination. Files of different sizes always differ.
+     */
+    public enum Comparison {
+        /**
+         * Same size.
+         */
+        SIZE,
+        /**
+         * Same size, and the destination was modified no earlier than the source.
+         */
+        MODIFIED,
+        /**
+         * Same size and ETag. Falls back to MODIFIED when either side has no ETag.
+         */
+        ETAG,
+        /**
+         * Same size and MD5 of the content. Both files are read.
+         */
+        CHECKSUM
+    }
+
+    private final FileSystem source;
+    private final FileSystem destination;
+    private final Comparison comparison;
+    private final boolean deleteExtraneous;
+    private final boolean allowEmptySource;
+    private final int parallelism;
+
+    /**
+     * @param deleteExtraneous if true, files in the destination directory that aren't in the source are deleted.
+     *                         A sync that would delete everything because the source is empty is refused.
+     */
+    public FileSystemSync(FileSystem source, FileSystem destination, Comparison comparison, boolean deleteExtraneous, int parallelism) {
+        this(source, destination, comparison, deleteExtraneous, false, parallelism);
+    }
+
+    /**
+     * @param allowEmptySource if true, an empty source directory empties the destination directory when
+     *                         deleteExtraneous is set, instead of being refused as a likely mistake.
+     */
+    public FileSystemSync(FileSystem source, FileSystem destination, Comparison comparison, boolean deleteExtraneous,
+                          boolean allowEmptySource, int parallelism) {
+        this.source = source;
+        this.destination = destination;
+        this.comparison = comparison;
+        this.deleteExtraneous = deleteExtraneous;
+        this.allowEmptySource = allowEmptySource;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @Value
+    public static class Report {
+        int filesCompared;
+        int filesCopied;
+        long bytesCopied;
+        int filesDeleted;
+        Map<Path, Exception> failed;
+        Duration elapsed;
+
+        public boolean isComplete() {
+            return failed.isEmpty();
+        }
+
+        public double getBytesPerSecond() {
+            long millis = Math.max(1, elapsed.toMillis());
+            return bytesCopied * 1000.0 / millis;
+        }
+    }
+
+    public Report sync(Path sourceDirectory, Path destinationDirectory) {
+        long start = System.currentTimeMillis();
+        Map<Path, FileMetadata> sourceFiles = listUnder(source, sourceDirectory);
+        Map<Path, FileMetadata> destinationFiles = listUnder(destination, destinationDirectory);
+        if (deleteExtraneous && !allowEmptySource && sourceFiles.isEmpty() && !destinationFiles.isEmpty()) {
+            throw new IllegalStateException("Refusing to delete all " + destinationFiles.size() + " files in " + destinationDirectory
+                    + ": the source " + sourceDirectory + " is empty");
+        }
+        Map<Path, FileMetadata> destinationByRelativePath = new HashMap<>();
+        destinationFiles.forEach((path, metadata) -> destinationByRelativePath.put(destinationDirectory.relativize(path), metadata));
+        logger.info("Syncing " + sourceFiles.size() + " files into a destination holding " + destinationFiles.size());
+
+        Progress progress = new Progress(sourceFiles.size(), start);
+        Map<Path, Exception> failed = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fs-sync-%d").build());
+        //files are handed over as threads free up, rather than all queued at once.
+        int window = parallelism * 2;
+        Semaphore inFlight = new Semaphore(window);
+        try {
+            sourceFiles.forEach((path, metadata) -> {
+                Path relative = sourceDirectory.relativize(path);
+                Path target = destinationDirectory.resolve(relative.toString());
+                FileMetadata existing = destinationByRelativePath.remove(relative);
+                inFlight.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        if (existing == null || !isSame(metadata, existing)) {
+                            source.transferTo(path, destination, target);
+                            progress.copied(metadata.getSize());
+                        }
+                    } catch (RuntimeException e) {
+                        logger.warn("Unable to sync " + path + " to " + target, e);
+                        failed.put(path, e);
+                    } finally {
+                        progress.compared();
+                        inFlight.release();
+                    }
+                });
+            });
+            inFlight.acquireUninterruptibly(window);
+        } finally {
+            executor.shutdown();
+        }
+
+        int deleted = 0;
+        if (deleteExtraneous && !destinationByRelativePath.isEmpty()) {
+            List<Path> extraneous = destinationByRelativePath.values().stream().map(FileMetadata::getPath).collect(toList());
+            BatchResult result = destination.deleteAll(extraneous);
+            deleted = result.getSucceeded().size();
+            failed.putAll(result.getFailed());
+        }
+
+        Report report = new Report(progress.compared.intValue(), progress.copied.intValue(), progress.bytes.get(), deleted,
+                Collections.unmodifiableMap(new LinkedHashMap<>(failed)), Duration.ofMillis(System.currentTimeMillis() - start));
+        logger.info("Sync of " + sourceDirectory + " to " + destinationDirectory + " done: " + report);
+        return report;
+    }
+
+    /**
+     * Listings are by prefix, so siblings sharing the directory's name as a prefix are filtered out. The empty path
+     * is the root, which everything is under.
+     */
+    private static Map<Path, FileMetadata> listUnder(FileSystem fileSystem, Path directory) {
+        boolean root = directory.toString().isEmpty();
+        Map<Path, FileMetadata> files = new LinkedHashMap<>();
+        try (Stream<FileMetadata> listed = fileSystem.streamFileMetadata(directory)) {
+            listed.filter(metadata -> root || (metadata.getPath().startsWith(directory) && !metadata.getPath().equals(directory)))
+                    .forEach(metadata -> files.put(metadata.getPath(), metadata));
+        }
+        return files;
+    }
+
+    private boolean isSame(FileMetadata sourceFile, FileMetadata destinationFile) {
+        if (sourceFile.getSize() != destinationFile.getSize()) {
+            return false;
+        }
+        switch (comparison) {
+            case SIZE:
+                return true;
+            case ETAG:
+                if (sourceFile.getETag() != null && destinationFile.getETag() != null) {
+                    return sourceFile.getETag().equals(destinationFile.getETag());
+                }
+                return isNotOlder(sourceFile, destinationFile);
+            case MODIFIED:
+                return isNotOlder(sourceFile, destinationFile);
+            case CHECKSUM:
+                return md5(source, sourceFile.getPath()).equals(md5(destination, destinationFile.getPath()));
+            default:
+                throw new IllegalStateException("Unknown comparison " + comparison);
+        }
+    }
+
+    private static boolean isNotOlder(FileMetadata sourceFile, FileMetadata destinationFile) {
+        return sourceFile.getLastModified() != null && destinationFile.getLastModified() != null
+                && !destinationFile.getLastModified().isBefore(sourceFile.getLastModified());
+    }
+
+    @SneakyThrows
+    private static String md5(FileSystem fileSystem, Path file) {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        try (InputStream in = new DigestInputStream(fileSystem.inputStream(file), md5)) {
+            ByteStreams.exhaust(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return BaseEncoding.base16().lowerCase().encode(md5.digest());
+    }
+
+    /**
+     * Counts work done, and logs it at most every few seconds.
+     */
+    private static class Progress {
+        private final int total;
+        private final long start;
+        private final AtomicLong compared = new AtomicLong();
+        private final AtomicLong copied = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong lastLogged;
+
+        Progress(int total, long start) {
+            this.total = total;
+            this.start = start;
+            this.lastLogged = new AtomicLong(start);
+        }
+
+        void copied(long size) {
+            copied.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+
+        void compared() {
+            compared.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long last = lastLogged.get();
+            if (now - last >= PROGRESS_INTERVAL_MILLIS && lastLogged.compareAndSet(last, now)) {
+                double seconds = Math.max(1, now - start) / 1000.0;
+                logger.info(String.format("Sync progress: %d/%d compared, %d copied, %.1f MB at %.1f MB/s",
+                        compared.get(), total, copied.get(), bytes.get() / 1e6, bytes.get() / 1e6 / seconds));
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.flightstats.filesystem;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * A FileSystem that forwards every call to another one. Decorators extend this and override only what they change,
+ * in the style of Guava's Forwarding* classes.
+ */
+public abstract class ForwardingFileSystem implements FileSystem {
+    private final FileSystem delegate;
+
+    protected ForwardingFileSystem(FileSystem delegate) {
+        this.delegate = delegate;
+    }
+
+    protected FileSystem delegate() {
+        return delegate;
+    }
+
+    /**
+     * Wraps an output stream so that the callback runs once the stream has been closed successfully.
+     */
+    protected static OutputStream onClose(OutputStream out, Runnable callback) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                callback.run();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return delegate.outputStream(fileName);
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        return delegate.outputStream(fileName, contentType);
+    }
+
+    @Override
+    public InputStream inputStream(Path fileName) {
+        return delegate.inputStream(fileName);
+    }
+
+    /**
+     * Not forwarded: the delegate's version of this would bypass any change this decorator makes to inputStream.
+     * Decorators that leave the content alone can forward it themselves.
+     */
+    @Override
+    public InputStream inputStream(Path fileName, Consumer<FileMetadata> version) {
+        return FileSystem.super.inputStream(fileName, version);
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        return delegate.readContents(fileName);
+    }
+
+    @Override
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return delegate.lines(fileName, charset);
+    }
+
+    @Override
+    public Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return delegate.records(fileName, format);
+    }
+
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        return delegate.read(fileName, offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel readChannel(Path fileName) {
+        return delegate.readChannel(fileName);
+    }
+
+    @Override
+    public boolean exists(Path fileName) {
+        return delegate.exists(fileName);
+    }
+
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        return delegate.stat(fileName);
+    }
+
+    @Override
+    public Map<Path, FileMetadata> statAll(Collection<Path> fileNames) {
+        return delegate.statAll(fileNames);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        delegate.saveContent(content, fileName);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        delegate.saveContent(content, fileName, contentType);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        delegate.saveContent(content, fileName, contentType);
+    }
+
+    @Override
+    public List<Path> listFiles(Path prefixPath) {
+        return delegate.listFiles(prefixPath);
+    }
+
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        return delegate.streamFiles(prefixPath);
+    }
+
+    @Override
+    public List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        return delegate.listFilesParallel(prefixPath, sorted);
+    }
+
+    @Override
+    public Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        return delegate.streamFileMetadata(prefixPath);
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        return delegate.listDirectories(directory);
+    }
+
+    @Override
+    public void move(Path file, Path destinationDirectory) {
+        delegate.move(file, destinationDirectory);
+    }
+
+    @Override
+    public void transferTo(Path source, FileSystem destinationFileSystem, Path destination) {
+        delegate.transferTo(source, destinationFileSystem, destination);
+    }
+
+    @Override
+    public BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        return delegate.moveAll(files, destinationDirectory);
+    }
+
+    @Override
+    public void delete(Path fileName) {
+        delegate.delete(fileName);
+    }
+
+    @Override
+    public BatchResult deleteAll(Collection<Path> fileNames) {
+        return delegate.deleteAll(fileNames);
+    }
+}
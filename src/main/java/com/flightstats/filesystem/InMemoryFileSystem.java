@@ -0,0 +1,340 @@
+package com.flightstats.filesystem;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.BaseEncoding;
+import lombok.SneakyThrows;
+import lombok.Value;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Keeps files off-heap, in direct ByteBuffer segments, behind a sorted index of keys, so listings are range scans.
+ * Keys are the '/'-joined path, as on S3, and listings and moves behave as they do on S3.
+ * <p>
+ * A file becomes visible, or replaces the old version, atomically when its output stream is closed. Readers keep
+ * reading the version they opened. Writes that would take the total size of all files past maxBytes fail with an
+ * IOException. Only published files count against the limit, so a stream that is never closed holds nothing once it
+ * has been collected; two streams racing for the last of the space find out on close.
+ */
+public class InMemoryFileSystem implements FileSystem {
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    private final ConcurrentSkipListMap<String, StoredFile> files = new ConcurrentSkipListMap<>();
+    private final long maxBytes;
+    private final int segmentSize;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    public InMemoryFileSystem(long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize the largest direct buffer files are written into. Segments start at the size of the write
+     *                    that opens them and double as they fill, so small files take little more than their size.
+     */
+    public InMemoryFileSystem(long maxBytes, int segmentSize) {
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(files.size(), usedBytes.get(), maxBytes, reads.get(), writes.get());
+    }
+
+    @Value
+    public static class Statistics {
+        int fileCount;
+        long usedBytes;
+        long maxBytes;
+        long reads;
+        long writes;
+    }
+
+    private String makeFileName(Path file) {
+        return Joiner.on("/").join(file.iterator());
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        return new SegmentOutputStream(makeFileName(fileName), contentType);
+    }
+
+    @Override
+    public InputStream inputStream(Path fileName) {
+        StoredFile file = get(fileName);
+        reads.incrementAndGet();
+        List<InputStream> streams = new ArrayList<>(file.getSegments().size());
+        file.getSegments().forEach(segment -> streams.add(new ByteBufferInputStream(segment)));
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        StoredFile file = get(fileName);
+        reads.incrementAndGet();
+        return new String(copy(file, 0, (int) Math.min(Integer.MAX_VALUE, file.getSize())).array(), UTF_8);
+    }
+
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        StoredFile file = get(fileName);
+        reads.incrementAndGet();
+        return copy(file, offset, (int) Math.max(0, Math.min(length, file.getSize() - offset)));
+    }
+
+    private ByteBuffer copy(StoredFile file, long offset, int length) {
+        ByteBuffer result = ByteBuffer.allocate(length);
+        long segmentStart = 0;
+        for (ByteBuffer segment : file.getSegments()) {
+            long segmentEnd = segmentStart + segment.remaining();
+            if (result.hasRemaining() && offset + result.position() < segmentEnd) {
+                ByteBuffer view = segment.duplicate();
+                view.position((int) (offset + result.position() - segmentStart));
+                if (view.remaining() > result.remaining()) {
+                    view.limit(view.position() + result.remaining());
+                }
+                result.put(view);
+            }
+            segmentStart = segmentEnd;
+        }
+        result.flip();
+        return result;
+    }
+
+    private StoredFile get(Path fileName) {
+        StoredFile file = files.get(makeFileName(fileName));
+        if (file == null) {
+            throw new UncheckedIOException(new FileNotFoundException("file not found in memory: " + fileName));
+        }
+        return file;
+    }
+
+    @Override
+    public boolean exists(Path fileName) {
+        return files.containsKey(makeFileName(fileName));
+    }
+
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        return Optional.ofNullable(files.get(makeFileName(fileName)))
+                .map(file -> new FileMetadata(fileName, file.getSize(), file.getLastModified(), file.getETag(), file.getContentType()));
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        saveContent(content, fileName, null);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        saveContent(content.getBytes(UTF_8), fileName, contentType);
+    }
+
+    @Override
+    @SneakyThrows
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        try (OutputStream out = outputStream(fileName, contentType)) {
+            out.write(content);
+        }
+    }
+
+    @Override
+    public List<Path> listFiles(Path prefixPath) {
+        try (Stream<Path> paths = streamFiles(prefixPath)) {
+            return paths.collect(toList());
+        }
+    }
+
+    /**
+     * A range scan of the index, in key order.
+     */
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        return withPrefix(makeFileName(prefixPath)).keySet().stream().map(key -> Paths.get(key));
+    }
+
+    @Override
+    public Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        return withPrefix(makeFileName(prefixPath)).entrySet().stream().map(entry -> {
+            StoredFile file = entry.getValue();
+            return new FileMetadata(Paths.get(entry.getKey()), file.getSize(), file.getLastModified(), file.getETag(), file.getContentType());
+        });
+    }
+
+    private ConcurrentNavigableMap<String, StoredFile> withPrefix(String prefix) {
+        return prefix.isEmpty() ? files : files.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        String prefix = makeFileName(directory);
+        prefix = prefix.isEmpty() ? "" : prefix + "/";
+        Set<Path> directories = new LinkedHashSet<>();
+        for (String key : withPrefix(prefix).keySet()) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash >= 0) {
+                directories.add(Paths.get(key.substring(0, slash + 1)));
+            }
+        }
+        return new ArrayList<>(directories);
+    }
+
+    @Override
+    public void move(Path file, Path destinationDirectory) {
+        StoredFile moved = files.remove(makeFileName(file));
+        if (moved == null) {
+            throw new UncheckedIOException(new FileNotFoundException("file not found in memory: " + file));
+        }
+        released(files.put(makeFileName(destinationDirectory.resolve(file.getFileName())), moved));
+    }
+
+    @Override
+    public void delete(Path fileName) {
+        released(files.remove(makeFileName(fileName)));
+    }
+
+    private void released(StoredFile file) {
+        if (file != null) {
+            usedBytes.addAndGet(-file.getSize());
+        }
+    }
+
+    private void reserve(long bytes) throws IOException {
+        long used = usedBytes.addAndGet(bytes);
+        if (used > maxBytes) {
+            usedBytes.addAndGet(-bytes);
+            throw full(used - bytes);
+        }
+    }
+
+    private IOException full(long used) {
+        return new IOException("In-memory file system is full: " + used + " of " + maxBytes + " bytes used");
+    }
+
+    @Value
+    private static class StoredFile {
+        List<ByteBuffer> segments;
+        long size;
+        Instant lastModified;
+        String eTag;
+        String contentType;
+    }
+
+    /**
+     * Fills direct segments as it goes, checking each write against the limit before taking it, and reserves the
+     * space and publishes the file on close.
+     */
+    private class SegmentOutputStream extends OutputStream {
+        private final String key;
+        private final String contentType;
+        private final List<ByteBuffer> segments = new ArrayList<>();
+        private final MessageDigest md5 = md5();
+        private ByteBuffer current;
+        private long size;
+        private boolean failed;
+        private boolean closed;
+
+        SegmentOutputStream(String key, String contentType) {
+            this.key = key;
+            this.contentType = contentType;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            long used = usedBytes.get();
+            if (used + size + len > maxBytes) {
+                failed = true;
+                throw full(used);
+            }
+            md5.update(b, off, len);
+            size += len;
+            while (len > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    makeRoom(len);
+                }
+                int chunk = Math.min(len, current.remaining());
+                current.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+
+        /**
+         * Grows the current segment, up to segmentSize, or starts a new one sized for the pending bytes once it is
+         * full size.
+         */
+        private void makeRoom(int pending) {
+            if (current != null && current.capacity() < segmentSize) {
+                long wanted = Math.max(2L * current.capacity(), (long) current.position() + pending);
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(segmentSize, wanted));
+                current.flip();
+                grown.put(current);
+                segments.set(segments.size() - 1, grown);
+                current = grown;
+            } else {
+                current = ByteBuffer.allocateDirect(Math.min(segmentSize, Math.max(MIN_SEGMENT_SIZE, pending)));
+                segments.add(current);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (failed) {
+                //a write didn't fit. don't publish what was written before it.
+                return;
+            }
+            reserve(size);
+            List<ByteBuffer> readOnly = new ArrayList<>(segments.size());
+            for (ByteBuffer segment : segments) {
+                segment.flip();
+                readOnly.add(segment.asReadOnlyBuffer());
+            }
+            String eTag = BaseEncoding.base16().lowerCase().encode(md5.digest());
+            released(files.put(key, new StoredFile(readOnly, size, Instant.now(), eTag, contentType)));
+            writes.incrementAndGet();
+        }
+    }
+
+    @SneakyThrows
+    private static MessageDigest md5() {
+        return MessageDigest.getInstance("MD5");
+    }
+}
@@ -7,23 +7,59 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.Stream;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static java.util.stream.Collectors.toList;
 
 public class LocalFileSystem implements FileSystem {
     private final static Logger logger = LoggerFactory.getLogger(LocalFileSystem.class);
 
+    /**
+     * Listing pools, shared by every instance with the same parallelism and created on first use. Their threads are
+     * daemons, so they never need shutting down.
+     */
+    private static final Map<Integer, ForkJoinPool> listingPools = new ConcurrentHashMap<>();
+
+    private final int listingParallelism;
+
+    public LocalFileSystem() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param listingParallelism the number of threads used by listFilesParallel.
+     */
+    public LocalFileSystem(int listingParallelism) {
+        this.listingParallelism = Math.max(1, listingParallelism);
+    }
+
     @Override
     @SneakyThrows
     public OutputStream outputStream(Path fileName) {
         fileName.toFile().getParentFile().mkdirs();
-        return new FileOutputStream(fileName.toFile());
+        return new AbortableFileOutputStream(fileName.toFile());
     }
 
     @Override
@@ -37,10 +73,80 @@ public class LocalFileSystem implements FileSystem {
         return new FileInputStream(fileName.toFile());
     }
 
+    /**
+     * Returns the file exactly as stored, line endings included.
+     */
     @Override
     @SneakyThrows
     public String readContents(Path fileName) {
-        return Joiner.on('\n').join(Files.readAllLines(fileName, UTF_8));
+        return new String(Files.readAllBytes(fileName), UTF_8);
+    }
+
+    @Override
+    @SneakyThrows
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return Files.lines(fileName, charset);
+    }
+
+    /**
+     * Maps the whole file into memory, read-only. Worth it for large files that are read repeatedly, since the pages
+     * are shared with the OS cache rather than copied onto the heap. Files over 2GB can't be mapped in one buffer.
+     */
+    @SneakyThrows
+    public MappedByteBuffer mapReadOnly(Path fileName) {
+        try (FileChannel channel = FileChannel.open(fileName, READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * When the destination is also local, the bytes are copied by the kernel with FileChannel.transferTo, without
+     * passing through user space.
+     */
+    @Override
+    public void transferTo(Path source, FileSystem destinationFileSystem, Path destination) {
+        if (!(destinationFileSystem instanceof LocalFileSystem)) {
+            FileSystem.super.transferTo(source, destinationFileSystem, destination);
+            return;
+        }
+        destination.toFile().getParentFile().mkdirs();
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(destination, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    //the source shrank while it was being copied.
+                    throw new EOFException("unexpected end of " + source + " at " + position + " of " + size + " bytes");
+                }
+                position += transferred;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        try (FileChannel channel = FileChannel.open(fileName, READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            long position = offset;
+            int read;
+            while (buffer.hasRemaining() && (read = channel.read(buffer, position)) >= 0) {
+                position += read;
+            }
+            buffer.flip();
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    @SneakyThrows
+    public SeekableByteChannel readChannel(Path fileName) {
+        return FileChannel.open(fileName, READ);
     }
 
     @Override
@@ -48,6 +154,18 @@ public class LocalFileSystem implements FileSystem {
         return fileName.toFile().exists();
     }
 
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(fileName, BasicFileAttributes.class);
+            return Optional.of(new FileMetadata(fileName, attributes.size(), attributes.lastModifiedTime().toInstant(), null, Files.probeContentType(fileName)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     @SneakyThrows
     public void saveContent(String content, Path fileName) {
@@ -68,13 +186,20 @@ public class LocalFileSystem implements FileSystem {
 
     @Override
     public List<Path> listFiles(Path prefixPath) {
+        try (Stream<Path> files = streamFiles(prefixPath)) {
+            return files.collect(toList());
+        }
+    }
+
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
         //all this stuff is to make this method work like S3 does when you give it a prefix to search for.
         Path parent = prefixPath.getParent();
         String prefix = prefixPath.getFileName().toString();
 
         try {
             Stream<Path> directories = Files.find(parent, 1, (path, attributes) -> path.getFileName().toString().startsWith(prefix));
-            Stream<Path> files = directories.flatMap(d -> {
+            return directories.flatMap(d -> {
                 try {
                     return Files.find(d, 100, (path, basicFileAttributes) -> basicFileAttributes.isRegularFile());
                 } catch (IOException e) {
@@ -82,9 +207,79 @@ public class LocalFileSystem implements FileSystem {
                     return Stream.empty();
                 }
             });
-            return files.collect(toList());
         } catch (IOException e) {
             logger.warn("Error listing directory: " + prefixPath, e);
+            return Stream.empty();
+        }
+    }
+
+    /**
+     * Walks the matching directories as a fork-join task per directory.
+     */
+    @Override
+    public List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        Path parent = prefixPath.getParent();
+        String prefix = prefixPath.getFileName().toString();
+        List<Path> matches;
+        try (Stream<Path> children = Files.list(parent)) {
+            matches = children.filter(path -> path.getFileName().toString().startsWith(prefix)).collect(toList());
+        } catch (IOException e) {
+            logger.warn("Error listing directory: " + prefixPath, e);
+            return Collections.emptyList();
+        }
+        ForkJoinPool listingPool = listingPools.computeIfAbsent(listingParallelism, ForkJoinPool::new);
+        List<Path> files = listingPool.invoke(new DirectoryWalk(matches, 100));
+        if (sorted) {
+            files.sort(null);
+        }
+        return files;
+    }
+
+    /**
+     * Collects the regular files among the given paths, forking a subtask for each directory.
+     */
+    private static class DirectoryWalk extends RecursiveTask<List<Path>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> paths;
+        private final int depthRemaining;
+
+        private DirectoryWalk(List<Path> paths, int depthRemaining) {
+            this.paths = paths;
+            this.depthRemaining = depthRemaining;
+        }
+
+        @Override
+        protected List<Path> compute() {
+            List<Path> files = new ArrayList<>();
+            List<DirectoryWalk> subtasks = new ArrayList<>();
+            for (Path path : paths) {
+                if (Files.isRegularFile(path)) {
+                    files.add(path);
+                } else if (depthRemaining > 0 && Files.isDirectory(path)) {
+                    try (Stream<Path> children = Files.list(path)) {
+                        DirectoryWalk subtask = new DirectoryWalk(children.collect(toList()), depthRemaining - 1);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    } catch (IOException e) {
+                        logger.warn("Error listing directory: " + path, e);
+                    }
+                }
+            }
+            subtasks.forEach(subtask -> files.addAll(subtask.join()));
+            return files;
+        }
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> children = Files.list(directory)) {
+            return children.filter(Files::isDirectory).collect(toList());
+        } catch (IOException e) {
+            logger.warn("Error listing directory: " + directory, e);
             return Collections.emptyList();
         }
     }
@@ -95,8 +290,38 @@ public class LocalFileSystem implements FileSystem {
         Files.move(file, destinationDirectory.resolve(makeFileName(file)));
     }
 
+    @Override
+    @SneakyThrows
+    public void delete(Path fileName) {
+        Files.deleteIfExists(fileName);
+    }
+
     private String makeFileName(Path file) {
         return Joiner.on("/").join(file.iterator());
     }
 
+    /**
+     * Aborting closes the file and deletes it.
+     */
+    private static class AbortableFileOutputStream extends FileOutputStream implements Abortable {
+        private final File file;
+
+        AbortableFileOutputStream(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void abort() {
+            try {
+                close();
+            } catch (IOException e) {
+                logger.warn("Unable to close aborted file " + file, e);
+            }
+            if (!file.delete()) {
+                logger.warn("Unable to delete aborted file " + file);
+            }
+        }
+    }
+
 }
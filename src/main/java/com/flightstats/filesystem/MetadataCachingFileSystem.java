@@ -0,0 +1,262 @@
+package com.flightstats.filesystem;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Caches stat, exists and listing results of another FileSystem in memory for a fixed time.
+ * <p>
+ * Missing files are cached too, so repeated existence checks for a key that isn't there yet don't go back to the
+ * delegate. Saves, moves and deletes made through this instance are applied to the cached listings in place, which
+ * doesn't extend their life: changes made by anyone else still show up once the entries expire. Listings are matched
+ * by string prefix, as S3 does, and kept in key order.
+ */
+public class MetadataCachingFileSystem extends ForwardingFileSystem {
+    private final Cache<Path, Optional<FileMetadata>> stats;
+    private final Cache<Path, ConcurrentSkipListMap<String, Path>> listings;
+    private final Cache<Path, List<Path>> directories;
+
+    /**
+     * @param ttl        how long an entry is trusted after it was fetched from the delegate.
+     * @param maxEntries upper bound on the number of entries in each of the stat, listing and directory caches.
+     */
+    public MetadataCachingFileSystem(FileSystem delegate, Duration ttl, long maxEntries) {
+        super(delegate);
+        this.stats = newCache(ttl, maxEntries);
+        this.listings = newCache(ttl, maxEntries);
+        this.directories = newCache(ttl, maxEntries);
+    }
+
+    private static <V> Cache<Path, V> newCache(Duration ttl, long maxEntries) {
+        return CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .maximumSize(maxEntries)
+                .recordStats()
+                .build();
+    }
+
+    public CacheStats getStatCacheStats() {
+        return stats.stats();
+    }
+
+    public CacheStats getListingCacheStats() {
+        return listings.stats().plus(directories.stats());
+    }
+
+    /**
+     * Drops every cached entry.
+     */
+    public void invalidateAll() {
+        stats.invalidateAll();
+        listings.invalidateAll();
+        directories.invalidateAll();
+    }
+
+    @Override
+    public boolean exists(Path fileName) {
+        return stat(fileName).isPresent();
+    }
+
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        Optional<FileMetadata> cached = stats.getIfPresent(fileName);
+        if (cached != null) {
+            return cached;
+        }
+        Optional<FileMetadata> metadata = delegate().stat(fileName);
+        stats.put(fileName, metadata);
+        return metadata;
+    }
+
+    /**
+     * Only the paths missing from the cache are passed on to the delegate, in a single batch.
+     */
+    @Override
+    public Map<Path, FileMetadata> statAll(Collection<Path> fileNames) {
+        Map<Path, FileMetadata> result = new LinkedHashMap<>();
+        List<Path> misses = new ArrayList<>();
+        for (Path fileName : fileNames) {
+            Optional<FileMetadata> cached = stats.getIfPresent(fileName);
+            if (cached == null) {
+                misses.add(fileName);
+            } else {
+                cached.ifPresent(metadata -> result.put(fileName, metadata));
+            }
+        }
+        if (!misses.isEmpty()) {
+            Map<Path, FileMetadata> fetched = delegate().statAll(misses);
+            for (Path fileName : misses) {
+                FileMetadata metadata = fetched.get(fileName);
+                stats.put(fileName, Optional.ofNullable(metadata));
+                if (metadata != null) {
+                    result.put(fileName, metadata);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Path> listFiles(Path prefixPath) {
+        ConcurrentSkipListMap<String, Path> cached = listings.getIfPresent(prefixPath);
+        if (cached != null) {
+            return new ArrayList<>(cached.values());
+        }
+        List<Path> files = delegate().listFiles(prefixPath);
+        listings.put(prefixPath, listing(files));
+        return files;
+    }
+
+    private static ConcurrentSkipListMap<String, Path> listing(List<Path> files) {
+        ConcurrentSkipListMap<String, Path> listing = new ConcurrentSkipListMap<>();
+        files.forEach(file -> listing.put(file.toString(), file));
+        return listing;
+    }
+
+    /**
+     * Served from the cache when the prefix has been listed recently, otherwise streamed lazily from the delegate
+     * without being cached.
+     */
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        ConcurrentSkipListMap<String, Path> cached = listings.getIfPresent(prefixPath);
+        return cached != null ? new ArrayList<>(cached.values()).stream() : delegate().streamFiles(prefixPath);
+    }
+
+    @Override
+    public List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        ConcurrentSkipListMap<String, Path> cached = listings.getIfPresent(prefixPath);
+        if (cached != null) {
+            //already in key order.
+            return new ArrayList<>(cached.values());
+        }
+        List<Path> files = delegate().listFilesParallel(prefixPath, sorted);
+        listings.put(prefixPath, listing(files));
+        return files;
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        List<Path> cached = directories.getIfPresent(directory);
+        if (cached != null) {
+            return new ArrayList<>(cached);
+        }
+        List<Path> result = delegate().listDirectories(directory);
+        directories.put(directory, Collections.unmodifiableList(new ArrayList<>(result)));
+        return result;
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        return onClose(delegate().outputStream(fileName, contentType), () -> created(fileName));
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        delegate().saveContent(content, fileName);
+        created(fileName);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        delegate().saveContent(content, fileName, contentType);
+        created(fileName);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        delegate().saveContent(content, fileName, contentType);
+        created(fileName);
+    }
+
+    /**
+     * The source is removed from the cached listings and remembered as missing. Where the file lands depends on the
+     * delegate, so anything cached under the destination directory is dropped rather than updated.
+     */
+    @Override
+    public void move(Path file, Path destinationDirectory) {
+        delegate().move(file, destinationDirectory);
+        removed(file);
+        changed(destinationDirectory);
+    }
+
+    @Override
+    public BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        BatchResult result = delegate().moveAll(files, destinationDirectory);
+        result.getSucceeded().forEach(this::removed);
+        changed(destinationDirectory);
+        return result;
+    }
+
+    @Override
+    public void delete(Path fileName) {
+        delegate().delete(fileName);
+        removed(fileName);
+    }
+
+    @Override
+    public BatchResult deleteAll(Collection<Path> fileNames) {
+        BatchResult result = delegate().deleteAll(fileNames);
+        result.getSucceeded().forEach(this::removed);
+        return result;
+    }
+
+    private void removed(Path fileName) {
+        stats.put(fileName, Optional.empty());
+        listingsMatching(fileName).forEach(listing -> listing.remove(fileName.toString()));
+    }
+
+    private void changed(Path directory) {
+        String name = directory.toString();
+        stats.asMap().keySet().removeIf(path -> path.startsWith(directory));
+        listings.asMap().keySet().removeIf(prefix -> name.startsWith(prefix.toString()) || prefix.startsWith(directory));
+        directories.asMap().keySet().removeIf(parent -> name.startsWith(parent.toString()));
+    }
+
+    /**
+     * Its metadata isn't known until it is stat'ed again, but it exists and belongs in every listing it matches.
+     */
+    private void created(Path fileName) {
+        stats.invalidate(fileName);
+        listingsMatching(fileName).forEach(listing -> listing.put(fileName.toString(), fileName));
+        directories.invalidate(Paths.get(""));
+        for (Path parent = fileName.getParent(); parent != null; parent = parent.getParent()) {
+            directories.invalidate(parent);
+        }
+    }
+
+    /**
+     * The cached listings whose prefix the file's name starts with, found by looking up each prefix of the name
+     * rather than scanning the cache. The lookups go through asMap so they don't count as cache hits or misses.
+     */
+    private List<ConcurrentSkipListMap<String, Path>> listingsMatching(Path fileName) {
+        String name = fileName.toString();
+        Set<Path> prefixes = new LinkedHashSet<>();
+        for (int length = 0; length <= name.length(); length++) {
+            prefixes.add(Paths.get(name.substring(0, length)));
+        }
+        List<ConcurrentSkipListMap<String, Path>> matching = new ArrayList<>();
+        for (Path prefix : prefixes) {
+            ConcurrentSkipListMap<String, Path> listing = listings.asMap().get(prefix);
+            if (listing != null) {
+                matching.add(listing);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,513 @@
+package com.flightstats.filesystem;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Stores many small files in a few large objects of another FileSystem, typically S3. Files are appended to a
+ * segment in memory; once the segment reaches segmentSize, has held data for maxAge, or on flush, it is written to
+ * the store as one object, along with an index file of where each file sits in it. Files of passthroughSize or more
+ * aren't packed: they are streamed to the store as objects of their own, and only indexed. Reads are ranged reads of
+ * the segment, and exists, stat and listings are answered from the index, which is loaded when this is constructed.
+ * <p>
+ * Files are readable here as soon as they are written, but only durable in the store once their segment has been
+ * flushed. A segment that fails to flush on its own (when full or too old) is logged and kept, and tried again on the
+ * next flush; only an explicit flush or close throws. Deletes and moves only update the index; the bytes stay in
+ * their segment. Only one instance should write under a root at a time.
+ */
+public class PackedFileSystem implements FileSystem, Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(PackedFileSystem.class);
+    private static final int MAX_SEGMENT_SIZE = Integer.MAX_VALUE - 8;
+    private static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(1);
+
+    private final FileSystem store;
+    private final Path segmentDirectory;
+    private final Path indexDirectory;
+    private final int segmentSize;
+    private final int passthroughSize;
+    private final Duration maxAge;
+    private final ScheduledExecutorService flusher;
+    private final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+    private final Map<String, Segment> unflushed = new ConcurrentHashMap<>();
+    private final AtomicInteger segmentCounter = new AtomicInteger();
+    private final Object flushLock = new Object();
+    private Segment current;
+
+    /**
+     * Files of a quarter of segmentSize or more pass through, and segments are flushed after a minute.
+     */
+    public PackedFileSystem(FileSystem store, Path root, int segmentSize) {
+        this(store, root, segmentSize, Math.max(1, segmentSize / 4), DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * @param root            the directory of the store that holds the segments and their index.
+     * @param segmentSize     the size a segment is flushed at. Larger means fewer, larger writes to the store.
+     * @param passthroughSize the size from which files are stored as objects of their own. At most segmentSize.
+     * @param maxAge          how long data may wait in a segment before it is flushed anyway.
+     */
+    public PackedFileSystem(FileSystem store, Path root, int segmentSize, int passthroughSize, Duration maxAge) {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be between 1 and " + MAX_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        if (passthroughSize <= 0 || passthroughSize > segmentSize) {
+            throw new IllegalArgumentException("passthroughSize must be between 1 and segmentSize: " + passthroughSize);
+        }
+        this.store = store;
+        this.segmentDirectory = root.resolve("segments");
+        this.indexDirectory = root.resolve("index");
+        this.segmentSize = segmentSize;
+        this.passthroughSize = passthroughSize;
+        this.maxAge = maxAge;
+        loadIndex();
+        this.current = newSegment();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("packed-flush-%d").build());
+        long period = Math.max(1, maxAge.toMillis() / 2);
+        flusher.scheduleWithFixedDelay(this::flushIfOld, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes out the current segment and any that haven't been written yet, along with their index files.
+     */
+    public void flush() {
+        synchronized (this) {
+            if (!current.isEmpty()) {
+                seal();
+            }
+        }
+        flushSealed();
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            flusher.shutdown();
+        }
+    }
+
+    private void flushIfOld() {
+        synchronized (this) {
+            if (current.isOlderThan(maxAge)) {
+                seal();
+            }
+        }
+        flushSealedQuietly();
+    }
+
+    private String makeFileName(Path file) {
+        return Joiner.on("/").join(file.iterator());
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    /**
+     * Buffers the file until it is closed, or until it reaches passthroughSize, from when on it is streamed to an
+     * object of its own.
+     */
+    @Override
+    public OutputStream outputStream(Path fileName, String contentType) {
+        return new OutputStream() {
+            private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private String objectName;
+            private OutputStream object;
+            private long size;
+            private boolean closed;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (object == null && buffer.size() + (long) len >= passthroughSize) {
+                    objectName = newName();
+                    object = store.outputStream(segmentDirectory.resolve(objectName), contentType);
+                    buffer.writeTo(object);
+                    buffer = null;
+                }
+                if (object != null) {
+                    object.write(b, off, len);
+                } else {
+                    buffer.write(b, off, len);
+                }
+                size += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (object == null) {
+                    append(fileName, buffer.toByteArray(), buffer.size(), contentType);
+                    return;
+                }
+                object.close();
+                indexed(fileName, new Entry(objectName, 0, size, Instant.now(), contentType, true));
+            }
+        };
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        saveContent(content, fileName, null);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        saveContent(content.getBytes(UTF_8), fileName, contentType);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        if (content.length < passthroughSize) {
+            append(fileName, content, content.length, contentType);
+            return;
+        }
+        String objectName = newName();
+        store.saveContent(content, segmentDirectory.resolve(objectName), contentType);
+        indexed(fileName, new Entry(objectName, 0, content.length, Instant.now(), contentType, true));
+    }
+
+    /**
+     * Appends a file smaller than passthroughSize to the current segment. The segment is sealed first if the file
+     * would take it past segmentSize, so a segment never grows beyond that.
+     */
+    private void append(Path fileName, byte[] content, int length, String contentType) {
+        boolean sealed = false;
+        synchronized (this) {
+            if (current.size() > 0 && (long) current.size() + length > segmentSize) {
+                seal();
+                sealed = true;
+            }
+            Entry entry = new Entry(current.name, current.size(), length, Instant.now(), contentType, false);
+            current.write(content, length);
+            current.record(put(makeFileName(fileName), entry));
+            index.put(makeFileName(fileName), entry);
+            if (current.size() >= segmentSize) {
+                seal();
+                sealed = true;
+            }
+        }
+        if (sealed) {
+            flushSealedQuietly();
+        }
+    }
+
+    /**
+     * Indexes a file already stored as its own object.
+     */
+    private synchronized void indexed(Path fileName, Entry entry) {
+        current.record(put(makeFileName(fileName), entry));
+        index.put(makeFileName(fileName), entry);
+    }
+
+    /**
+     * Streams passthrough files, which are whole objects of their own; packed files are small and read with a
+     * ranged read of their segment.
+     */
+    @Override
+    public InputStream inputStream(Path fileName) {
+        Entry entry = get(fileName);
+        if (entry.isWhole()) {
+            return ByteStreams.limit(store.inputStream(segmentDirectory.resolve(entry.getSegment())), entry.getLength());
+        }
+        return new ByteArrayInputStream(readFully(entry));
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        return new String(readFully(get(fileName)), UTF_8);
+    }
+
+    private byte[] readFully(Entry entry) {
+        ByteBuffer buffer = read(entry, 0, Math.toIntExact(entry.getLength()));
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        Entry entry = get(fileName);
+        return read(entry, offset, (int) Math.max(0, Math.min(length, entry.getLength() - offset)));
+    }
+
+    private ByteBuffer read(Entry entry, long offset, int length) {
+        Segment segment = unflushed.get(entry.getSegment());
+        if (segment != null) {
+            //unflushed segments only hold packed files, which are smaller than the segment.
+            return segment.read(Math.toIntExact(entry.getOffset() + offset), length);
+        }
+        ByteBuffer buffer = store.read(segmentDirectory.resolve(entry.getSegment()), entry.getOffset() + offset, length);
+        if (buffer.remaining() != length) {
+            throw new UncheckedIOException(new EOFException("segment " + entry.getSegment() + " is shorter than its index"));
+        }
+        return buffer;
+    }
+
+    private Entry get(Path fileName) {
+        Entry entry = index.get(makeFileName(fileName));
+        if (entry == null) {
+            throw new UncheckedIOException(new FileNotFoundException("file not found in packed store: " + fileName));
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean exists(Path fileName) {
+        return index.containsKey(makeFileName(fileName));
+    }
+
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        return Optional.ofNullable(index.get(makeFileName(fileName)))
+                .map(entry -> new FileMetadata(fileName, entry.getLength(), entry.getLastModified(), null, entry.getContentType()));
+    }
+
+    @Override
+    public List<Path> listFiles(Path prefixPath) {
+        try (Stream<Path> paths = streamFiles(prefixPath)) {
+            return paths.collect(toList());
+        }
+    }
+
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        return withPrefix(makeFileName(prefixPath)).keySet().stream().map(key -> Paths.get(key));
+    }
+
+    @Override
+    public Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        return withPrefix(makeFileName(prefixPath)).entrySet().stream().map(entry -> new FileMetadata(Paths.get(entry.getKey()),
+                entry.getValue().getLength(), entry.getValue().getLastModified(), null, entry.getValue().getContentType()));
+    }
+
+    private ConcurrentNavigableMap<String, Entry> withPrefix(String prefix) {
+        return prefix.isEmpty() ? index : index.subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        String prefix = makeFileName(directory);
+        prefix = prefix.isEmpty() ? "" : prefix + "/";
+        Set<Path> directories = new LinkedHashSet<>();
+        for (String key : withPrefix(prefix).keySet()) {
+            int slash = key.indexOf('/', prefix.length());
+            if (slash >= 0) {
+                directories.add(Paths.get(key.substring(0, slash + 1)));
+            }
+        }
+        return new ArrayList<>(directories);
+    }
+
+    /**
+     * Re-indexes the file under the destination directory. The content isn't copied.
+     */
+    @Override
+    public synchronized void move(Path file, Path destinationDirectory) {
+        String source = makeFileName(file);
+        Entry entry = index.remove(source);
+        if (entry == null) {
+            throw new UncheckedIOException(new FileNotFoundException("file not found in packed store: " + file));
+        }
+        String destination = makeFileName(destinationDirectory.resolve(file.getFileName()));
+        index.put(destination, entry);
+        current.record(delete(source));
+        current.record(put(destination, entry));
+    }
+
+    @Override
+    public synchronized void delete(Path fileName) {
+        String key = makeFileName(fileName);
+        if (index.remove(key) != null) {
+            current.record(delete(key));
+        }
+    }
+
+    /**
+     * P records a file packed into a segment, O one stored as an object of its own. Both have the same fields.
+     */
+    private static String put(String key, Entry entry) {
+        return String.join("\t", entry.isWhole() ? "O" : "P", entry.getSegment(), String.valueOf(entry.getOffset()), String.valueOf(entry.getLength()),
+                String.valueOf(entry.getLastModified().toEpochMilli()), entry.getContentType() == null ? "" : entry.getContentType(), key);
+    }
+
+    private static String delete(String key) {
+        return String.join("\t", "D", key);
+    }
+
+    /**
+     * Starts a segment and makes it readable.
+     */
+    private Segment newSegment() {
+        Segment segment = new Segment(newName());
+        unflushed.put(segment.name, segment);
+        return segment;
+    }
+
+    /**
+     * A name for a segment or passthrough object. Names sort in the order they were taken, which for segments is the
+     * order their index files are replayed in.
+     */
+    private String newName() {
+        return String.format("%013d-%06d", System.currentTimeMillis(), segmentCounter.incrementAndGet());
+    }
+
+    private void seal() {
+        current = newSegment();
+    }
+
+    /**
+     * Writes out sealed segments in order, each one before its index file, so an index never points past what
+     * has been stored.
+     */
+    private void flushSealed() {
+        synchronized (flushLock) {
+            List<Segment> sealed = new ArrayList<>(unflushed.values());
+            synchronized (this) {
+                sealed.remove(current);
+            }
+            sealed.sort(Comparator.comparing(segment -> segment.name));
+            for (Segment segment : sealed) {
+                if (segment.size() > 0) {
+                    store.saveContent(segment.bytes(), segmentDirectory.resolve(segment.name), "application/octet-stream");
+                }
+                store.saveContent(String.join("\n", segment.records) + "\n", indexDirectory.resolve(segment.name), "text/plain");
+                unflushed.remove(segment.name);
+            }
+        }
+    }
+
+    /**
+     * Flushes on behalf of whichever writer sealed the segment, or the timer. A failure isn't theirs to handle: the
+     * segment stays unflushed and readable, and the next flush tries it again.
+     */
+    private void flushSealedQuietly() {
+        try {
+            flushSealed();
+        } catch (RuntimeException e) {
+            logger.warn("Unable to flush packed segments to " + segmentDirectory + ", will retry", e);
+        }
+    }
+
+    private void loadIndex() {
+        List<Path> indexFiles = new ArrayList<>(store.listFiles(indexDirectory));
+        indexFiles.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        for (Path indexFile : indexFiles) {
+            for (String line : store.readContents(indexFile).split("\n")) {
+                String[] fields = line.split("\t", 7);
+                if ((fields[0].equals("P") || fields[0].equals("O")) && fields.length == 7) {
+                    index.put(fields[6], new Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                            Instant.ofEpochMilli(Long.parseLong(fields[4])), fields[5].isEmpty() ? null : fields[5], fields[0].equals("O")));
+                } else if (fields[0].equals("D") && fields.length == 2) {
+                    index.remove(fields[1]);
+                }
+            }
+        }
+        logger.info("Loaded " + index.size() + " packed files from " + indexFiles.size() + " index files in " + indexDirectory);
+    }
+
+    @Value
+    private static class Entry {
+        String segment;
+        long offset;
+        long length;
+        Instant lastModified;
+        String contentType;
+        /**
+         * Whether the file is the whole of its object, as passthrough files are, rather than packed into a segment.
+         */
+        boolean whole;
+    }
+
+    /**
+     * The content and index records of a segment that hasn't been written to the store yet. Its size is kept within
+     * MAX_SEGMENT_SIZE by the callers.
+     */
+    private static class Segment {
+        private final String name;
+        private final List<String> records = new ArrayList<>();
+        private byte[] buffer = new byte[64 * 1024];
+        private int size;
+        private long firstRecordMillis;
+
+        Segment(String name) {
+            this.name = name;
+        }
+
+        synchronized void write(byte[] content, int length) {
+            if (size + length > buffer.length) {
+                long grown = Math.max(buffer.length * 2L, (long) size + length);
+                buffer = Arrays.copyOf(buffer, (int) Math.min(MAX_SEGMENT_SIZE, grown));
+            }
+            System.arraycopy(content, 0, buffer, size, length);
+            size += length;
+        }
+
+        synchronized void record(String record) {
+            if (records.isEmpty()) {
+                firstRecordMillis = System.currentTimeMillis();
+            }
+            records.add(record);
+        }
+
+        synchronized ByteBuffer read(int offset, int length) {
+            return ByteBuffer.wrap(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        synchronized boolean isOlderThan(Duration age) {
+            return !records.isEmpty() && System.currentTimeMillis() - firstRecordMillis >= age.toMillis();
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        synchronized byte[] bytes() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+}
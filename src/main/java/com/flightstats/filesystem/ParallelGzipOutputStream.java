@@ -0,0 +1,172 @@
+package com.flightstats.filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips in parallel, the way pigz does: the input is cut into blocks, each block is compressed on the executor into
+ * its own gzip member, and the members are written out in order. Concatenated members are a valid gzip file, which
+ * GZIPInputStream and gunzip read back as one. At most maxPendingBlocks blocks are held at a time; the writer blocks
+ * on the oldest one beyond that.
+ * <p>
+ * Once a block fails to compress or write, the stream is broken: later writes and close rethrow. Close then aborts
+ * the underlying stream if it is {@link Abortable}, as S3 and local files are, so the truncated file is dropped;
+ * any other stream is closed, which may commit it.
+ */
+class ParallelGzipOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxPendingBlocks;
+    private final Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int count;
+    private boolean wroteMember;
+    private boolean closed;
+    private IOException failure;
+
+    ParallelGzipOutputStream(OutputStream out, Executor executor, int blockSize, int maxPendingBlocks) {
+        this.out = out;
+        this.executor = executor;
+        this.blockSize = blockSize;
+        this.maxPendingBlocks = Math.max(1, maxPendingBlocks);
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        failIfBroken();
+        if (count == block.length) {
+            submit();
+        }
+        block[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        failIfBroken();
+        while (len > 0) {
+            if (count == block.length) {
+                submit();
+            }
+            int chunk = Math.min(len, block.length - count);
+            System.arraycopy(b, off, block, count, chunk);
+            count += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Ends the current block early, so flushing often makes for smaller members and a worse ratio.
+     */
+    @Override
+    public void flush() throws IOException {
+        failIfBroken();
+        if (count > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            failIfBroken();
+            if (count > 0 || (!wroteMember && pending.isEmpty())) {
+                //an empty file still needs one (empty) member to be valid gzip.
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+        } catch (IOException | RuntimeException e) {
+            discard(e);
+            throw e;
+        }
+        out.close();
+    }
+
+    /**
+     * Gives up on the underlying stream after a failure, aborting it if it can be.
+     */
+    private void discard(Exception failure) {
+        pending.forEach(block -> block.cancel(false));
+        pending.clear();
+        try {
+            if (out instanceof Abortable) {
+                ((Abortable) out).abort();
+            } else {
+                out.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private void failIfBroken() throws IOException {
+        if (failure != null) {
+            throw new IOException("an earlier block failed; the output is incomplete", failure);
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] full = block;
+        int length = count;
+        pending.add(CompletableFuture.supplyAsync(() -> compress(full, length), executor));
+        block = new byte[blockSize];
+        count = 0;
+        while (pending.size() > maxPendingBlocks) {
+            writeOldest();
+        }
+    }
+
+    private void writeOldest() throws IOException {
+        try {
+            out.write(pending.removeFirst().join());
+            wroteMember = true;
+        } catch (IOException e) {
+            throw broken(e);
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw broken(cause instanceof UncheckedIOException ? ((UncheckedIOException) cause).getCause() : new IOException(cause));
+        } catch (RuntimeException e) {
+            throw broken(new IOException(e));
+        }
+    }
+
+    /**
+     * Drops the blocks still in flight, and remembers the failure so that close gives up on what was written.
+     */
+    private IOException broken(IOException e) {
+        failure = e;
+        pending.forEach(block -> block.cancel(false));
+        pending.clear();
+        return e;
+    }
+
+    private static byte[] compress(byte[] block, int length) {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024)) {
+            gzip.write(block, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return member.toByteArray();
+    }
+}
@@ -0,0 +1,122 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies one S3 object to another key server-side as a multipart upload, with the CopyPart requests for its byte
+ * ranges running concurrently. This is the only way to copy objects over 5GB. Every part is pinned to the ETag seen by
+ * the initial HEAD.
+ * <p>
+ * The calling thread copies parts too, and helpers on the executor only take parts that nobody has started, so the
+ * copy finishes even when every executor thread is busy, for instance with the other copies of a moveAll.
+ */
+class ParallelS3Copy {
+    private final static Logger logger = LoggerFactory.getLogger(ParallelS3Copy.class);
+    private static final long MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final int MAX_PARTS = 10000;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String sourceKey;
+    private final String destinationKey;
+    private final ObjectMetadata source;
+    private final long partSize;
+    private final int partCount;
+    private final int parallelism;
+    private final Executor executor;
+
+    ParallelS3Copy(AmazonS3 s3, String bucketName, String sourceKey, String destinationKey, ObjectMetadata source, S3Settings settings, Executor executor) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.sourceKey = sourceKey;
+        this.destinationKey = destinationKey;
+        this.source = source;
+        long size = source.getContentLength();
+        long minimumForPartLimit = (size + MAX_PARTS - 1) / MAX_PARTS;
+        this.partSize = Math.min(MAX_PART_SIZE, Math.max(Math.max(MIN_PART_SIZE, minimumForPartLimit), settings.getCopyPartSize()));
+        this.partCount = (int) Math.max(1, (size + partSize - 1) / partSize);
+        this.parallelism = Math.max(1, settings.getBulkParallelism());
+        this.executor = executor;
+    }
+
+    void copy() {
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (source.getContentType() != null) {
+            metadata.setContentType(source.getContentType());
+        }
+        metadata.setUserMetadata(source.getUserMetadata());
+        String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, destinationKey, metadata)).getUploadId();
+
+        PartETag[] eTags = new PartETag[partCount];
+        AtomicInteger nextPart = new AtomicInteger();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(partCount);
+        Runnable worker = () -> {
+            int part;
+            while ((part = nextPart.getAndIncrement()) < partCount) {
+                try {
+                    if (failure.get() == null) {
+                        eTags[part] = copyPart(uploadId, part);
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 1; i < Math.min(parallelism, partCount); i++) {
+            executor.execute(worker);
+        }
+        worker.run();
+        Uninterruptibles.awaitUninterruptibly(done);
+
+        if (failure.get() != null) {
+            logger.warn("Multipart copy of s3://" + bucketName + "/" + sourceKey + " failed, aborting", failure.get());
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, destinationKey, uploadId));
+            throw failure.get();
+        }
+        s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, destinationKey, uploadId, Arrays.asList(eTags)));
+    }
+
+    private PartETag copyPart(String uploadId, int part) {
+        long firstByte = part * partSize;
+        long lastByte = Math.min(source.getContentLength(), firstByte + partSize) - 1;
+        CopyPartRequest request = new CopyPartRequest()
+                .withSourceBucketName(bucketName)
+                .withSourceKey(sourceKey)
+                .withDestinationBucketName(bucketName)
+                .withDestinationKey(destinationKey)
+                .withUploadId(uploadId)
+                .withPartNumber(part + 1)
+                .withFirstByte(firstByte)
+                .withLastByte(lastByte);
+        if (source.getETag() != null) {
+            request.withMatchingETagConstraint(source.getETag());
+        }
+        CopyPartResult result = s3.copyPart(request);
+        if (result == null) {
+            throw new UncheckedIOException(new IOException("s3://" + bucketName + "/" + sourceKey + " changed while it was being copied"));
+        }
+        return result.getPartETag();
+    }
+}
@@ -0,0 +1,348 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Downloads one S3 object over several connections at once, each fetching a byte range of downloadPartSize.
+ * The parts are either reassembled in order behind an InputStream, or written straight into a local file with
+ * positional writes. Every ranged GET is pinned to the ETag seen by the initial HEAD. When the download fails or
+ * is closed, the GETs still in flight are aborted rather than drained.
+ */
+class ParallelS3Download {
+    private final static Logger logger = LoggerFactory.getLogger(ParallelS3Download.class);
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String key;
+    private final long size;
+    private final String eTag;
+    private final int partSize;
+    private final int partCount;
+    private final int parallelism;
+    private final int maxBufferedParts;
+    private final int maxAttempts;
+    private final Executor executor;
+    private final Set<S3ObjectInputStream> openRanges = ConcurrentHashMap.newKeySet();
+    private volatile boolean aborted;
+
+    ParallelS3Download(AmazonS3 s3, String bucketName, String key, ObjectMetadata metadata, S3Settings settings, Executor executor) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.size = metadata.getContentLength();
+        this.eTag = metadata.getETag();
+        this.partSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, settings.getDownloadPartSize()));
+        this.partCount = (int) ((size + partSize - 1) / partSize);
+        this.parallelism = Math.max(1, settings.getDownloadParallelism());
+        this.maxBufferedParts = Math.max(parallelism, settings.getMaxBufferedParts());
+        this.maxAttempts = settings.getMaxReconnects() + 1;
+        this.executor = executor;
+    }
+
+    InputStream inputStream() {
+        return new ReorderingInputStream();
+    }
+
+    /**
+     * Writes the object to the local file, replacing it if it exists. Blocks until every part has landed.
+     */
+    void downloadTo(Path localFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(localFile, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            Semaphore permits = new Semaphore(parallelism);
+            AtomicBoolean failed = new AtomicBoolean();
+            List<CompletableFuture<Void>> futures = new ArrayList<>(partCount);
+            for (int part = 0; part < partCount && !failed.get(); part++) {
+                permits.acquireUninterruptibly();
+                int thisPart = part;
+                CompletableFuture<Void> future = CompletableFuture.runAsync(() -> writePart(thisPart, channel), executor);
+                future.whenComplete((r, e) -> {
+                    if (e != null) {
+                        failed.set(true);
+                    }
+                    permits.release();
+                });
+                futures.add(future);
+            }
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            } catch (ExecutionException e) {
+                futures.forEach(f -> f.cancel(false));
+                abort();
+                throw asIOException(e.getCause());
+            } catch (InterruptedException e) {
+                futures.forEach(f -> f.cancel(false));
+                abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted downloading s3://" + bucketName + "/" + key);
+            }
+        }
+    }
+
+    private void writePart(int part, FileChannel channel) {
+        withRetries(part, () -> {
+            long position = start(part);
+            try (InputStream in = openRange(part)) {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private byte[] readPart(int part) {
+        return withRetries(part, () -> {
+            try (InputStream in = openRange(part)) {
+                byte[] bytes = new byte[(int) (end(part) - start(part) + 1)];
+                ByteStreams.readFully(in, bytes);
+                return bytes;
+            }
+        });
+    }
+
+    /**
+     * Retries I/O failures and retryable client errors, such as timeouts and 5xx responses, but not once the
+     * download has been aborted.
+     */
+    private <T> T withRetries(int part, IOCallable<T> callable) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return callable.call();
+            } catch (IOException | AmazonClientException e) {
+                if (aborted) {
+                    throw new UncheckedIOException(new InterruptedIOException("Download of s3://" + bucketName + "/" + key + " was aborted"));
+                }
+                if (attempt >= maxAttempts || !isRetryable(e)) {
+                    Throwables.throwIfUnchecked(e);
+                    throw new UncheckedIOException((IOException) e);
+                }
+                logger.warn("Ranged read of part " + part + " of s3://" + bucketName + "/" + key + " failed, retrying", e);
+            }
+        }
+    }
+
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            int status = ((AmazonServiceException) e).getStatusCode();
+            return status >= 500 || status == 429;
+        }
+        return !(e instanceof AmazonClientException) || ((AmazonClientException) e).isRetryable();
+    }
+
+    /**
+     * Opens the range and tracks it until it is closed, so that abort can cut it off.
+     */
+    private InputStream openRange(int part) throws IOException {
+        if (aborted) {
+            throw new InterruptedIOException("Download of s3://" + bucketName + "/" + key + " was aborted");
+        }
+        GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start(part), end(part));
+        if (eTag != null) {
+            request.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = s3.getObject(request);
+        if (object == null) {
+            throw new IOException("s3://" + bucketName + "/" + key + " changed while it was being downloaded");
+        }
+        S3ObjectInputStream content = object.getObjectContent();
+        openRanges.add(content);
+        return new FilterInputStream(content) {
+            @Override
+            public void close() throws IOException {
+                openRanges.remove(content);
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Stops every GET still running. Closing an S3 stream normally drains the rest of its range, which is the
+     * opposite of what a failed download wants.
+     */
+    private void abort() {
+        aborted = true;
+        for (S3ObjectInputStream range : openRanges) {
+            try {
+                range.abort();
+            } catch (RuntimeException e) {
+                logger.debug("Unable to abort ranged read of s3://" + bucketName + "/" + key, e);
+            }
+        }
+        openRanges.clear();
+    }
+
+    private long start(int part) {
+        return (long) part * partSize;
+    }
+
+    private long end(int part) {
+        return Math.min(size, start(part) + partSize) - 1;
+    }
+
+    private static IOException asIOException(Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
+
+    private interface IOCallable<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Hands out the parts in order. Parts are fetched ahead of the reader, but never more than maxBufferedParts
+     * past the part currently being read, and never more than parallelism at a time.
+     */
+    private class ReorderingInputStream extends InputStream {
+        private final Map<Integer, CompletableFuture<byte[]>> parts = new HashMap<>();
+        private int nextToSchedule;
+        private int nextToRead;
+        private int inFlight;
+        private boolean closed;
+        private byte[] current = new byte[0];
+        private int offset;
+
+        ReorderingInputStream() {
+            schedule();
+        }
+
+        private synchronized void schedule() {
+            while (!closed && nextToSchedule < partCount && inFlight < parallelism && nextToSchedule - nextToRead < maxBufferedParts) {
+                fetch(nextToSchedule++);
+            }
+        }
+
+        /**
+         * Starts a part. Its slot is given up, and the next part scheduled, before its future completes, so a reader
+         * woken by the part always finds the next one scheduled or a slot free for it.
+         */
+        private synchronized void fetch(int part) {
+            inFlight++;
+            parts.put(part, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readPart(part);
+                } finally {
+                    synchronized (this) {
+                        inFlight--;
+                    }
+                    schedule();
+                }
+            }, executor));
+        }
+
+        private boolean advance() throws IOException {
+            CompletableFuture<byte[]> next;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                if (nextToRead >= partCount) {
+                    return false;
+                }
+                if (nextToSchedule == nextToRead) {
+                    //the reader is waiting on it, so it goes ahead even if the slots are still taken.
+                    fetch(nextToSchedule++);
+                }
+                next = parts.remove(nextToRead++);
+            }
+            try {
+                current = next.get();
+                offset = 0;
+            } catch (ExecutionException e) {
+                close();
+                throw asIOException(e.getCause());
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted reading s3://" + bucketName + "/" + key);
+            }
+            schedule();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (offset >= current.length) {
+                if (!advance()) {
+                    return -1;
+                }
+            }
+            return current[offset++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (offset >= current.length) {
+                if (!advance()) {
+                    return -1;
+                }
+            }
+            int count = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, count);
+            offset += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current.length - offset;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            parts.values().forEach(f -> f.cancel(false));
+            if (nextToRead < partCount) {
+                abort();
+            }
+            parts.clear();
+            current = new byte[0];
+            offset = 0;
+        }
+    }
+}
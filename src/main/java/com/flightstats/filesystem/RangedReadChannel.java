@@ -0,0 +1,115 @@
+package com.flightstats.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A read-only SeekableByteChannel over {@link FileSystem#read}. Reads smaller than blockSize fetch a whole block
+ * and are then served from it, so a run of small reads near each other costs one request instead of one each.
+ * Larger reads go straight through.
+ */
+class RangedReadChannel implements SeekableByteChannel {
+    private final FileSystem fileSystem;
+    private final Path fileName;
+    private final long size;
+    private final int blockSize;
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private long blockStart;
+    private long position;
+    private boolean open = true;
+
+    RangedReadChannel(FileSystem fileSystem, Path fileName, long size, int blockSize) {
+        this.fileSystem = fileSystem;
+        this.fileName = fileName;
+        this.size = size;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (position < blockStart || position >= blockStart + block.limit()) {
+            if (dst.remaining() >= blockSize) {
+                ByteBuffer bytes = fileSystem.read(fileName, position, dst.remaining());
+                return consume(bytes, dst);
+            }
+            block = fileSystem.read(fileName, position, (int) Math.min(blockSize, size - position));
+            blockStart = position;
+        }
+        ByteBuffer view = block.duplicate();
+        view.position((int) (position - blockStart));
+        if (view.remaining() > dst.remaining()) {
+            view.limit(view.position() + dst.remaining());
+        }
+        return consume(view, dst);
+    }
+
+    private int consume(ByteBuffer bytes, ByteBuffer dst) {
+        int count = bytes.remaining();
+        if (count == 0) {
+            return -1;
+        }
+        dst.put(bytes);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        block = ByteBuffer.allocate(0);
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.flightstats.filesystem;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * How a file is split into records by {@link RecordReader}: either on a delimiter byte, or by a 4-byte big-endian
+ * length in front of each record.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class RecordFormat {
+    public static final RecordFormat LENGTH_PREFIXED = new RecordFormat(true, (byte) 0);
+    public static final RecordFormat NEWLINE_DELIMITED = delimitedBy((byte) '\n');
+
+    boolean lengthPrefixed;
+    byte delimiter;
+
+    /**
+     * The delimiter is not part of the records. The last record doesn't need one after it.
+     */
+    public static RecordFormat delimitedBy(byte delimiter) {
+        return new RecordFormat(false, delimiter);
+    }
+}
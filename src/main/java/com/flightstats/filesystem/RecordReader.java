@@ -0,0 +1,164 @@
+package com.flightstats.filesystem;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads records one at a time from a stream through a single reusable buffer, so memory use depends on the largest
+ * record rather than the size of the file. The buffer grows if a record doesn't fit.
+ */
+public class RecordReader implements Iterator<byte[]>, Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final RecordFormat format;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean endOfInput;
+    private byte[] next;
+
+    public RecordReader(InputStream in, RecordFormat format) {
+        this.channel = Channels.newChannel(in);
+        this.format = format;
+        buffer.flip();
+    }
+
+    /**
+     * A lazy stream of the lines of the input. Closing the stream closes the input.
+     */
+    public static Stream<String> lines(InputStream in, Charset charset) {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, charset), BUFFER_SIZE);
+        return reader.lines().onClose(() -> close(reader));
+    }
+
+    /**
+     * A lazy stream of the remaining records. Closing the stream closes the input.
+     */
+    public Stream<byte[]> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> close(this));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = format.isLengthPrefixed() ? readLengthPrefixed() : readDelimited();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public byte[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        byte[] record = next;
+        next = null;
+        return record;
+    }
+
+    private byte[] readLengthPrefixed() throws IOException {
+        if (!fill(4)) {
+            if (buffer.hasRemaining()) {
+                throw new EOFException("Input ended inside a record length");
+            }
+            return null;
+        }
+        int length = buffer.getInt();
+        if (length < 0) {
+            throw new IOException("Negative record length: " + length);
+        }
+        if (!fill(length)) {
+            throw new EOFException("Input ended inside a record of " + length + " bytes");
+        }
+        byte[] record = new byte[length];
+        buffer.get(record);
+        return record;
+    }
+
+    private byte[] readDelimited() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == format.getDelimiter()) {
+                    byte[] record = new byte[i - buffer.position()];
+                    buffer.get(record);
+                    buffer.get();
+                    return record;
+                }
+            }
+            scanned = buffer.remaining();
+            if (!readMore()) {
+                if (!buffer.hasRemaining()) {
+                    return null;
+                }
+                byte[] record = new byte[buffer.remaining()];
+                buffer.get(record);
+                return record;
+            }
+        }
+    }
+
+    private boolean fill(int bytes) throws IOException {
+        while (buffer.remaining() < bytes) {
+            if (!readMore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the unread bytes to the front of the buffer, growing it if it is full, and reads more after them.
+     */
+    private boolean readMore() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
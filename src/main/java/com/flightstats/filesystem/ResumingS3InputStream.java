@@ -0,0 +1,102 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams an S3 object straight off the GET connection. If the connection fails mid-stream, it reconnects with a
+ * ranged GET from the current offset, pinned to the original ETag so a concurrent overwrite can't be spliced in.
+ */
+class ResumingS3InputStream extends InputStream {
+    private final static Logger logger = LoggerFactory.getLogger(ResumingS3InputStream.class);
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String key;
+    private final int maxReconnects;
+    private final long length;
+    private final String eTag;
+    private S3ObjectInputStream current;
+    private long position;
+    private int reconnects;
+
+    ResumingS3InputStream(AmazonS3 s3, String bucketName, String key, int maxReconnects) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.maxReconnects = maxReconnects;
+        S3Object object = s3.getObject(bucketName, key);
+        this.length = object.getObjectMetadata().getContentLength();
+        this.eTag = object.getObjectMetadata().getETag();
+        this.current = object.getObjectContent();
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (true) {
+            try {
+                int b = current.read();
+                if (b >= 0) {
+                    position++;
+                }
+                return b;
+            } catch (IOException e) {
+                reconnect(e);
+            }
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            try {
+                int read = current.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            } catch (IOException e) {
+                reconnect(e);
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current.available();
+    }
+
+    private void reconnect(IOException cause) throws IOException {
+        if (reconnects++ >= maxReconnects) {
+            throw cause;
+        }
+        logger.warn("Read of s3://" + bucketName + "/" + key + " failed at offset " + position + ", reconnecting", cause);
+        current.abort();
+        GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(position);
+        if (eTag != null) {
+            request.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = s3.getObject(request);
+        if (object == null) {
+            throw new IOException("s3://" + bucketName + "/" + key + " changed while it was being read", cause);
+        }
+        current = object.getObjectContent();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (length >= 0 && position < length) {
+            //don't drain the rest of the object just to close the connection.
+            current.abort();
+        } else {
+            current.close();
+        }
+    }
+}
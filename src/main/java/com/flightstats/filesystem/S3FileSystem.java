@@ -5,30 +5,103 @@ import com.amazonaws.services.s3.model.*;
 import com.amazonaws.util.IOUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.SneakyThrows;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
-import static com.google.common.collect.Lists.transform;
+import static java.util.stream.Collectors.toList;
 
-public class S3FileSystem implements FileSystem {
+public class S3FileSystem implements FileSystem, Closeable {
     private final static Logger logger = LoggerFactory.getLogger(S3FileSystem.class);
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+    private static final String CHECKSUM_METADATA = "content-md5";
 
     private final AmazonS3 s3;
     private final String bucketName;
+    private final S3Settings settings;
+    private final Supplier<ExecutorService> executor;
+    private final BufferPool bufferPool;
+    private final Supplier<AsyncFileSystem> async;
+    private final Queue<ExecutorService> pools = new ConcurrentLinkedQueue<>();
 
     public S3FileSystem(AmazonS3 s3, String bucketName) {
+        this(s3, bucketName, S3Settings.DEFAULTS);
+    }
+
+    public S3FileSystem(AmazonS3 s3, String bucketName, S3Settings settings) {
         this.s3 = s3;
         this.bucketName = bucketName;
+        this.settings = settings;
+        this.executor = Suppliers.memoize(() -> closedWithThis(Executors.newFixedThreadPool(settings.getIoThreads(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-" + bucketName + "-%d").build())));
+        this.bufferPool = new BufferPool(settings.isDirectBuffers(), settings.getMaxPooledBufferBytes());
+        //concurrency is bounded by the async view itself; threads beyond that only serve callbacks that block.
+        this.async = Suppliers.memoize(() -> new BoundedAsyncFileSystem(this, closedWithThis(Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-" + bucketName + "-async-%d").build())),
+                settings.getAsyncConcurrency()));
+    }
+
+    private ExecutorService closedWithThis(ExecutorService pool) {
+        pools.add(pool);
+        return pool;
+    }
+
+    /**
+     * Shuts down the pools used for parts, batches and {@link #async()} calls. Work already running finishes;
+     * async calls still queued fail. The AmazonS3 client isn't shut down, as it may be shared.
+     */
+    @Override
+    public void close() {
+        pools.forEach(ExecutorService::shutdown);
+    }
+
+    /**
+     * A non-blocking view of this file system, with at most asyncConcurrency calls running at once. The version 1
+     * AWS SDK has no non-blocking S3 client, and its TransferManager also holds a thread per transfer, so the calls
+     * run on a dedicated pool. It is kept apart from the pool used for parts and batches, which the calls themselves
+     * wait on, and is shut down by {@link #close}.
+     */
+    public AsyncFileSystem async() {
+        return async.get();
     }
 
     private String makeFileName(Path file) {
@@ -42,7 +115,7 @@ public class S3FileSystem implements FileSystem {
 
     @Override
     public OutputStream outputStream(Path fileName, String contentType) {
-        return new ChunkingS3OutputStream(makeFileName(fileName), contentType);
+        return new ChunkingS3OutputStream(makeFileName(fileName), contentType, Collections.emptyMap());
     }
 
     @Override
@@ -52,21 +125,74 @@ public class S3FileSystem implements FileSystem {
     }
 
     @Override
-    @SneakyThrows
     public boolean exists(Path fileName) {
+        return stat(fileName).isPresent();
+    }
+
+    /**
+     * Uses a HEAD request, so no object content is transferred.
+     */
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
         try {
-            S3Object object = s3.getObject(bucketName, makeFileName(fileName));
-            object.close();
-            return true;
+            ObjectMetadata metadata = s3.getObjectMetadata(bucketName, makeFileName(fileName));
+            return Optional.of(new FileMetadata(fileName, metadata.getContentLength(), toInstant(metadata.getLastModified()), metadata.getETag(), metadata.getContentType()));
         } catch (AmazonS3Exception e) {
             //this is a bit of a kludge-o.  for some reason, we get a 403 when we can't read the file...sometimes.
             if (e.getStatusCode() == 404 || e.getStatusCode() == 403) {
-                return false;
+                return Optional.empty();
             }
             throw e;
         }
     }
 
+    /**
+     * Issues the HEAD requests concurrently, at most bulkParallelism at a time.
+     */
+    @Override
+    public Map<Path, FileMetadata> statAll(Collection<Path> fileNames) {
+        List<CompletableFuture<Optional<FileMetadata>>> futures = boundedAsync(fileNames, this::stat);
+        Map<Path, FileMetadata> result = new LinkedHashMap<>();
+        futures.forEach(future -> join(future).ifPresent(metadata -> result.put(metadata.getPath(), metadata)));
+        return result;
+    }
+
+    /**
+     * Like CompletableFuture.join, but rethrows the task's own unchecked exception rather than wrapping it.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    private static Instant toInstant(Date date) {
+        return date == null ? null : date.toInstant();
+    }
+
+    /**
+     * Runs the task for every input on the shared executor, with no more than bulkParallelism running at once.
+     * Blocks the caller while the limit is reached. The futures are returned in input order.
+     */
+    private <T, R> List<CompletableFuture<R>> boundedAsync(Collection<T> inputs, Function<T, R> task) {
+        Semaphore permits = new Semaphore(Math.max(1, settings.getBulkParallelism()));
+        List<CompletableFuture<R>> futures = new ArrayList<>(inputs.size());
+        for (T input : inputs) {
+            permits.acquireUninterruptibly();
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.apply(input);
+                } finally {
+                    permits.release();
+                }
+            }, executor.get()));
+        }
+        return futures;
+    }
+
     @Override
     @SneakyThrows
     public void saveContent(String content, Path fileName) {
@@ -79,38 +205,341 @@ public class S3FileSystem implements FileSystem {
         saveContent(content.getBytes(Charsets.UTF_8), fileName, contentType);
     }
 
+    /**
+     * With skipUnchangedUploads, nothing is uploaded if the object already holds this content.
+     */
     @SneakyThrows
     @Override
     public void saveContent(byte[] content, Path fileName, String contentType) {
-        try (OutputStream outputStream = outputStream(fileName, contentType)) {
-            ByteStreams.copy(new ByteArrayInputStream(content), outputStream);
+        String key = makeFileName(fileName);
+        Map<String, String> userMetadata = Collections.emptyMap();
+        if (settings.isSkipUnchangedUploads()) {
+            String checksum = md5Hex(content);
+            if (isUnchanged(key, checksum, content.length, contentType)) {
+                logger.debug("Skipping upload of unchanged s3://" + bucketName + "/" + key);
+                return;
+            }
+            userMetadata = Collections.singletonMap(CHECKSUM_METADATA, checksum);
+        }
+        if (content.length <= settings.getUploadPartSize()) {
+            putObject(key, new ByteArrayInputStream(content), content.length, contentType, userMetadata);
+            return;
         }
+        try (OutputStream outputStream = new ChunkingS3OutputStream(key, contentType, userMetadata)) {
+            outputStream.write(content);
+        }
+    }
+
+    /**
+     * Compares against the checksum saved with the object or, for objects saved without one, the ETag, which is
+     * the MD5 of single-part uploads.
+     */
+    private boolean isUnchanged(String key, String checksum, long length, String contentType) {
+        ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(bucketName, key);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404 || e.getStatusCode() == 403) {
+                return false;
+            }
+            throw e;
+        }
+        if (metadata.getContentLength() != length || (contentType != null && !contentType.equals(metadata.getContentType()))) {
+            return false;
+        }
+        String stored = metadata.getUserMetaDataOf(CHECKSUM_METADATA);
+        return checksum.equals(stored != null ? stored : metadata.getETag());
+    }
+
+    /**
+     * MD5 only as a change check; Guava deprecated its Hashing.md5 for being insecure, which doesn't matter here.
+     */
+    @SneakyThrows
+    private static String md5Hex(byte[] content) {
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("MD5").digest(content));
+    }
+
+    private void putObject(String key, InputStream content, long length, String contentType, Map<String, String> userMetadata) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(length);
+        if (contentType != null) {
+            metadata.setContentType(contentType);
+        }
+        metadata.setUserMetadata(new HashMap<>(userMetadata));
+        s3.putObject(new PutObjectRequest(bucketName, key, content, metadata));
     }
 
     @Override
     public List<Path> listFiles(Path prefixPath) {
-        String prefix = makeFileName(prefixPath);
-        List<S3ObjectSummary> summaries = new ArrayList<>();
-        ObjectListing objectListing = s3.listObjects(bucketName, prefix);
-        summaries.addAll(objectListing.getObjectSummaries());
-        while (objectListing.isTruncated()) {
-            objectListing = s3.listNextBatchOfObjects(objectListing);
-            summaries.addAll(objectListing.getObjectSummaries());
+        try (Stream<Path> files = streamFiles(prefixPath)) {
+            return files.collect(toList());
+        }
+    }
+
+    /**
+     * Fetches one page of keys at a time, prefetching the next page in the background while the current one is
+     * consumed.
+     */
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName).withPrefix(makeFileName(prefixPath));
+        return S3ListingIterator.pages(s3, executor.get(), request)
+                .flatMap(page -> page.getObjectSummaries().stream())
+                .map(objectSummary -> Paths.get(objectSummary.getKey()));
+    }
+
+    /**
+     * Taken from the object summaries of the listing, so nothing is HEADed. Summaries carry no content type.
+     */
+    @Override
+    public Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(bucketName).withPrefix(makeFileName(prefixPath));
+        return S3ListingIterator.pages(s3, executor.get(), request)
+                .flatMap(page -> page.getObjectSummaries().stream())
+                .map(summary -> new FileMetadata(Paths.get(summary.getKey()), summary.getSize(),
+                        summary.getLastModified() == null ? null : summary.getLastModified().toInstant(), summary.getETag(), null));
+    }
+
+    /**
+     * Walks the prefix as a tree of common prefixes, or splits it by key range where the keys are flat, and lists
+     * the pieces concurrently, at most bulkParallelism at a time.
+     */
+    @Override
+    public List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        Queue<Path> files = new ConcurrentLinkedQueue<>();
+        new S3ShardedListing(s3, bucketName, makeFileName(prefixPath), executor.get(), settings.getBulkParallelism())
+                .list(summary -> files.add(Paths.get(summary.getKey())));
+        List<Path> result = new ArrayList<>(files);
+        if (sorted) {
+            result.sort(Comparator.comparing(Path::toString));
+        }
+        return result;
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        String prefix = makeFileName(directory);
+        ListObjectsRequest request = new ListObjectsRequest()
+                .withBucketName(bucketName)
+                .withPrefix(prefix.isEmpty() ? "" : prefix + "/")
+                .withDelimiter("/");
+        try (Stream<ObjectListing> pages = S3ListingIterator.pages(s3, executor.get(), request)) {
+            return pages.flatMap(page -> page.getCommonPrefixes().stream())
+                    .map(commonPrefix -> Paths.get(commonPrefix))
+                    .collect(toList());
         }
-        return transform(summaries, objectSummary -> Paths.get(objectSummary.getKey()));
     }
 
     @Override
     public void move(Path file, Path destinationDirectory) {
+        copy(file, destinationDirectory);
+        s3.deleteObject(bucketName, makeFileName(file));
+    }
+
+    /**
+     * HEADs the source first, so that large objects can be copied in parts.
+     */
+    private void copy(Path file, Path destinationDirectory) {
         String sourceKey = makeFileName(file);
         String destinationKey = makeFileName(destinationDirectory.resolve(file.getFileName()));
-        s3.copyObject(bucketName, sourceKey, bucketName, destinationKey);
-        s3.deleteObject(bucketName, sourceKey);
+        ObjectMetadata metadata = s3.getObjectMetadata(bucketName, sourceKey);
+        if (metadata.getContentLength() > settings.getCopyPartSize()) {
+            new ParallelS3Copy(s3, bucketName, sourceKey, destinationKey, metadata, settings, executor.get()).copy();
+        } else {
+            s3.copyObject(bucketName, sourceKey, bucketName, destinationKey);
+        }
+    }
+
+    /**
+     * Copies the objects concurrently, at most bulkParallelism at a time, then deletes the ones that were copied
+     * with batched multi-object deletes. A file whose delete fails is reported as failed, even though its copy
+     * already exists at the destination.
+     */
+    @Override
+    public BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        List<Path> sources = new ArrayList<>(files);
+        List<CompletableFuture<Void>> copies = boundedAsync(sources, file -> {
+            copy(file, destinationDirectory);
+            return null;
+        });
+        List<Path> copied = new ArrayList<>(sources.size());
+        Map<Path, Exception> failed = new LinkedHashMap<>();
+        for (int i = 0; i < sources.size(); i++) {
+            try {
+                join(copies.get(i));
+                copied.add(sources.get(i));
+            } catch (RuntimeException e) {
+                failed.put(sources.get(i), e);
+            }
+        }
+        BatchResult deleted = deleteAll(copied);
+        failed.putAll(deleted.getFailed());
+        return new BatchResult(deleted.getSucceeded(), failed);
+    }
+
+    @Override
+    public void delete(Path fileName) {
+        s3.deleteObject(bucketName, makeFileName(fileName));
+    }
+
+    /**
+     * Deletes up to 1000 keys per request, the most S3 accepts, with the requests running concurrently.
+     */
+    @Override
+    public BatchResult deleteAll(Collection<Path> fileNames) {
+        Map<String, Path> paths = new LinkedHashMap<>();
+        fileNames.forEach(fileName -> paths.put(makeFileName(fileName), fileName));
+        List<List<String>> batches = Lists.partition(new ArrayList<>(paths.keySet()), MAX_KEYS_PER_DELETE);
+        Map<Path, Exception> failed = new LinkedHashMap<>();
+        boundedAsync(batches, this::deleteBatch)
+                .forEach(batch -> join(batch).forEach((key, e) -> failed.put(paths.get(key), e)));
+        List<Path> succeeded = paths.values().stream().filter(path -> !failed.containsKey(path)).collect(toList());
+        return new BatchResult(succeeded, failed);
+    }
+
+    /**
+     * Returns the keys that couldn't be deleted.
+     */
+    private Map<String, Exception> deleteBatch(List<String> keys) {
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucketName)
+                .withKeys(keys.toArray(new String[keys.size()]))
+                .withQuiet(true);
+        Map<String, Exception> failed = new LinkedHashMap<>();
+        try {
+            s3.deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            e.getErrors().forEach(error -> failed.put(error.getKey(),
+                    new IOException("Unable to delete s3://" + bucketName + "/" + error.getKey() + ": " + error.getCode() + " " + error.getMessage())));
+        } catch (RuntimeException e) {
+            keys.forEach(key -> failed.put(key, e));
+        }
+        return failed;
     }
 
     @Override
-    @SneakyThrows
     public InputStream inputStream(Path fileName) {
+        return settings.isStreamingReads() ? streamingInputStream(fileName) : stagedInputStream(fileName);
+    }
+
+    /**
+     * The version is read from the GET's response, so it always describes the content being streamed.
+     */
+    @Override
+    public InputStream inputStream(Path fileName, Consumer<FileMetadata> version) {
+        try {
+            S3Object object = s3.getObject(bucketName, makeFileName(fileName));
+            ObjectMetadata metadata = object.getObjectMetadata();
+            version.accept(new FileMetadata(fileName, metadata.getContentLength(), toInstant(metadata.getLastModified()), metadata.getETag(), metadata.getContentType()));
+            return object.getObjectContent();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                throw new UncheckedIOException(new FileNotFoundException("file not found in S3: " + fileName));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Streams the lines straight off the connection, regardless of the streamingReads setting.
+     */
+    @Override
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return RecordReader.lines(streamingInputStream(fileName), charset);
+    }
+
+    /**
+     * Streams the records straight off the connection, regardless of the streamingReads setting.
+     */
+    @Override
+    public Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return new RecordReader(streamingInputStream(fileName), format).stream();
+    }
+
+    /**
+     * Returns the live object stream, reconnecting from the current offset if the connection drops mid-read.
+     */
+    public InputStream streamingInputStream(Path fileName) {
+        try {
+            InputStream stream = new ResumingS3InputStream(s3, bucketName, makeFileName(fileName), settings.getMaxReconnects());
+            return settings.getReadAheadBytes() > 0 ? new BufferedInputStream(stream, settings.getReadAheadBytes()) : stream;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                throw new UncheckedIOException(new FileNotFoundException("file not found in S3: " + fileName));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * A single ranged GET.
+     */
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        GetObjectRequest request = new GetObjectRequest(bucketName, makeFileName(fileName)).withRange(offset, offset + length - 1);
+        try (S3Object object = s3.getObject(request)) {
+            //a range running past the end of the object is served short, and Content-Length says by how much.
+            long served = object.getObjectMetadata().getContentLength();
+            byte[] bytes = new byte[served > 0 ? (int) Math.min(length, served) : length];
+            int read = ByteStreams.read(object.getObjectContent(), bytes, 0, bytes.length);
+            return ByteBuffer.wrap(bytes, 0, read);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 416) {
+                //the range starts past the end of the object.
+                return ByteBuffer.allocate(0);
+            }
+            if (e.getStatusCode() == 404) {
+                throw new UncheckedIOException(new FileNotFoundException("file not found in S3: " + fileName));
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * HEADs the object for its size, then reads it with ranged GETs of at least rangedReadBlockSize.
+     */
+    @Override
+    public SeekableByteChannel readChannel(Path fileName) {
+        FileMetadata metadata = stat(fileName)
+                .orElseThrow(() -> new UncheckedIOException(new FileNotFoundException("file not found in S3: " + fileName)));
+        return new RangedReadChannel(this, fileName, metadata.getSize(), settings.getRangedReadBlockSize());
+    }
+
+    /**
+     * Reads the object over several connections at once, using ranged GETs of downloadPartSize, and returns the
+     * bytes in order. At most maxBufferedParts parts are held in memory.
+     */
+    public InputStream parallelInputStream(Path fileName) {
+        return parallelDownload(fileName).inputStream();
+    }
+
+    /**
+     * Downloads the object to a local file over several connections at once, writing each part at its offset.
+     */
+    @SneakyThrows
+    public void download(Path fileName, Path localFile) {
+        parallelDownload(fileName).downloadTo(localFile);
+    }
+
+    private ParallelS3Download parallelDownload(Path fileName) {
+        String key = makeFileName(fileName);
+        try {
+            ObjectMetadata metadata = s3.getObjectMetadata(bucketName, key);
+            return new ParallelS3Download(s3, bucketName, key, metadata, settings, executor.get());
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                throw new UncheckedIOException(new FileNotFoundException("file not found in S3: " + fileName));
+            }
+            throw e;
+        }
+    }
+
+    @SneakyThrows
+    private InputStream stagedInputStream(Path fileName) {
         try (S3ObjectInputStream s3ObjectInputStream = s3.getObject(bucketName, makeFileName(fileName)).getObjectContent()) {
             File tempFile = File.createTempFile("s3Temp", null);
             tempFile.deleteOnExit();
@@ -124,73 +553,192 @@ public class S3FileSystem implements FileSystem {
         }
     }
 
-    private class ChunkingS3OutputStream extends OutputStream {
-        private static final int CHUNK_SIZE = 5 * 1024 * 1024;
-        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK_SIZE);
+    /**
+     * Buffers writes into pooled part buffers and uploads them as a multipart upload. Parts are uploaded on the
+     * shared executor, with at most maxPartsInFlight outstanding; the writer only blocks when that limit is reached.
+     * If any part fails, the upload is aborted and the failure is rethrown from the next write, flush or close.
+     * A stream closed before its first part fills is sent as a single putObject instead. Aborting the stream stores
+     * nothing.
+     */
+    private class ChunkingS3OutputStream extends OutputStream implements Abortable {
+        private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+        private static final int MAX_PART_SIZE = 1024 * 1024 * 1024;
+        private static final int PARTS_PER_DOUBLING = 1000;
         private final String fileName;
+        private final String contentType;
+        private final Map<String, String> userMetadata;
+        private final List<CompletableFuture<PartETag>> eTags = new ArrayList<>();
+        private final Semaphore partsInFlight = new Semaphore(Math.max(1, settings.getMaxPartsInFlight()));
+        private ByteBuffer buffer;
         private InitiateMultipartUploadResult initiateMultipartUploadResult;
         private int partNumber = 0;
-        private final List<PartETag> eTags = new ArrayList<>();
-        private final String contentType;
+        private boolean closed;
 
-        public ChunkingS3OutputStream(String fileName, String contentType) {
+        public ChunkingS3OutputStream(String fileName, String contentType, Map<String, String> userMetadata) {
             this.fileName = fileName;
             this.contentType = contentType;
+            this.userMetadata = userMetadata;
+            this.buffer = bufferPool.acquire(partSize(1));
+        }
+
+        private int partSize(int partNumber) {
+            long size = (long) Math.max(MIN_PART_SIZE, settings.getUploadPartSize()) << Math.min(30, (partNumber - 1) / PARTS_PER_DOUBLING);
+            return (int) Math.min(MAX_PART_SIZE, size);
         }
 
         @Override
         public void write(int b) throws IOException {
-            bytes.write(b);
-            if (bytes.size() >= CHUNK_SIZE) {
-                flush();
+            failIfClosed();
+            if (!buffer.hasRemaining()) {
+                uploadPart();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            failIfClosed();
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    uploadPart();
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
             }
         }
 
         @Override
         public void flush() throws IOException {
-            doFlush(false);
+            failIfAnyPartFailed();
+            if (buffer != null && !buffer.hasRemaining()) {
+                uploadPart();
+            }
         }
 
-        private void doFlush(boolean force) {
+        private void uploadPart() throws IOException {
+            failIfClosed();
+            failIfAnyPartFailed();
             if (initiateMultipartUploadResult == null) {
                 InitiateMultipartUploadRequest initiateMultipartUploadRequest = new InitiateMultipartUploadRequest(bucketName, fileName);
-                if (contentType != null) {
+                if (contentType != null || !userMetadata.isEmpty()) {
                     ObjectMetadata objectMetadata = new ObjectMetadata();
-                    objectMetadata.setContentType(contentType);
+                    if (contentType != null) {
+                        objectMetadata.setContentType(contentType);
+                    }
+                    objectMetadata.setUserMetadata(new HashMap<>(userMetadata));
                     initiateMultipartUploadRequest.setObjectMetadata(objectMetadata);
                 }
                 initiateMultipartUploadResult = s3.initiateMultipartUpload(initiateMultipartUploadRequest);
             }
-            if (bytes.size() == 0 && partNumber > 0) {
-//                logger.info("skipping flushing...zero bytes remaining");
-                return;
-            }
-            if (!force && bytes.size() < CHUNK_SIZE) {
-//                logger.info("skipping flushing...not forced and not enough bytes");
-                return;
-            }
-            logger.debug("Flushing to S3 with " + bytes.size() + " bytes");
+            ByteBuffer part = buffer;
+            part.flip();
+            logger.debug("Flushing to S3 with " + part.remaining() + " bytes");
             UploadPartRequest uploadPartRequest = new UploadPartRequest()
                     .withBucketName(bucketName)
                     .withPartNumber(++partNumber)
-                    .withPartSize(bytes.size())
+                    .withPartSize(part.remaining())
                     .withKey(fileName)
                     .withUploadId(initiateMultipartUploadResult.getUploadId())
-                    .withInputStream(new ByteArrayInputStream(bytes.toByteArray()));
-            UploadPartResult uploadPartResult = s3.uploadPart(uploadPartRequest);
-            eTags.add(uploadPartResult.getPartETag());
-            bytes.reset();
+                    .withInputStream(new ByteBufferInputStream(part));
+            partsInFlight.acquireUninterruptibly();
+            eTags.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return s3.uploadPart(uploadPartRequest).getPartETag();
+                } finally {
+                    //only recycle once the SDK is done reading, even if the future was cancelled meanwhile.
+                    bufferPool.release(part);
+                    partsInFlight.release();
+                }
+            }, executor.get()));
+            buffer = bufferPool.acquire(partSize(partNumber + 1));
+        }
+
+        private void failIfClosed() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed: s3://" + bucketName + "/" + fileName);
+            }
+        }
+
+        private void failIfAnyPartFailed() throws IOException {
+            for (CompletableFuture<PartETag> eTag : eTags) {
+                if (eTag.isCompletedExceptionally()) {
+                    awaitParts();
+                }
+            }
+        }
+
+        /**
+         * Waits for every outstanding part and returns their ETags in part order. Aborts the upload if any failed.
+         */
+        private List<PartETag> awaitParts() throws IOException {
+            List<PartETag> result = new ArrayList<>(eTags.size());
+            try {
+                for (CompletableFuture<PartETag> eTag : eTags) {
+                    result.add(eTag.get());
+                }
+                return result;
+            } catch (InterruptedException | ExecutionException e) {
+                abortUpload();
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                throw new IOException("Upload of s3://" + bucketName + "/" + fileName + " failed", cause);
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (!closed) {
+                abortUpload();
+            }
+        }
+
+        private void abortUpload() {
+            closed = true;
+            eTags.forEach(eTag -> eTag.cancel(false));
+            if (initiateMultipartUploadResult != null) {
+                try {
+                    s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, fileName, initiateMultipartUploadResult.getUploadId()));
+                } catch (RuntimeException e) {
+                    logger.warn("Unable to abort multipart upload of s3://" + bucketName + "/" + fileName, e);
+                }
+            }
+            releaseBuffer();
+        }
+
+        private void releaseBuffer() {
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
         }
 
         @Override
         public void close() throws IOException {
-            doFlush(true);
-            if (partNumber == 0 && bytes.size() == 0) {
-                //nothing to save, so avoid the S3 error.
+            if (closed) {
                 return;
             }
-            CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(bucketName, fileName, initiateMultipartUploadResult.getUploadId(), eTags);
+            if (partNumber == 0) {
+                closed = true;
+                buffer.flip();
+                try {
+                    putObject(fileName, new ByteBufferInputStream(buffer), buffer.remaining(), contentType, userMetadata);
+                } finally {
+                    releaseBuffer();
+                }
+                return;
+            }
+            if (buffer.position() > 0) {
+                uploadPart();
+            }
+            closed = true;
+            List<PartETag> partETags = awaitParts();
+            CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest(bucketName, fileName, initiateMultipartUploadResult.getUploadId(), partETags);
             s3.completeMultipartUpload(request);
+            releaseBuffer();
         }
     }
 }
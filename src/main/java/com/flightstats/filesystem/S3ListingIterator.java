@@ -0,0 +1,71 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.google.common.base.Throwables;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks the pages of an S3 listing lazily. As soon as a page is handed out, the next one is requested in the
+ * background, so a consumer working through page n rarely waits for page n+1. Nothing beyond that one page is
+ * fetched until it is asked for.
+ */
+class S3ListingIterator implements Iterator<ObjectListing> {
+    private final AmazonS3 s3;
+    private final Executor executor;
+    private CompletableFuture<ObjectListing> next;
+
+    S3ListingIterator(AmazonS3 s3, Executor executor, ListObjectsRequest request) {
+        this.s3 = s3;
+        this.executor = executor;
+        this.next = CompletableFuture.completedFuture(s3.listObjects(request));
+    }
+
+    /**
+     * A lazy stream of listing pages. Closing the stream abandons any page being prefetched.
+     */
+    static Stream<ObjectListing> pages(AmazonS3 s3, Executor executor, ListObjectsRequest request) {
+        S3ListingIterator iterator = new S3ListingIterator(s3, executor, request);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(iterator::cancel);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public ObjectListing next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        ObjectListing page;
+        try {
+            page = next.join();
+        } catch (CompletionException e) {
+            next = null;
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+        next = page.isTruncated() ? CompletableFuture.supplyAsync(() -> s3.listNextBatchOfObjects(page), executor) : null;
+        return page;
+    }
+
+    private void cancel() {
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+}
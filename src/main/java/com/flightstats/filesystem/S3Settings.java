@@ -0,0 +1,107 @@
+package com.flightstats.filesystem;
+
+import lombok.Value;
+import lombok.experimental.Wither;
+
+/**
+ * Tuning knobs for {@link S3FileSystem}. Start from {@link #DEFAULTS} and override what you need:
+ * <code>
+ * new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withStreamingReads(true));
+ * </code>
+ */
+@Value
+@Wither
+public class S3Settings {
+    public static final S3Settings DEFAULTS = new S3Settings(false, 1024 * 1024, 3, 16, 8 * 1024 * 1024, 8, 16, 4,
+            5 * 1024 * 1024, false, 64 * 1024 * 1024, 16, 128 * 1024 * 1024, 64 * 1024, 50, false);
+
+    /**
+     * If true, inputStream returns the live object stream rather than staging the object to a temp file first.
+     */
+    boolean streamingReads;
+
+    /**
+     * Size of the read-ahead buffer wrapped around streaming reads. Zero disables buffering.
+     */
+    int readAheadBytes;
+
+    /**
+     * How many times a streaming read will reconnect (with a ranged GET from the current offset) after the
+     * connection fails mid-stream.
+     */
+    int maxReconnects;
+
+    /**
+     * Size of the thread pool shared by all of this file system's concurrent operations.
+     */
+    int ioThreads;
+
+    /**
+     * Size of each ranged GET issued by a parallel download.
+     */
+    long downloadPartSize;
+
+    /**
+     * Maximum number of ranged GETs a single parallel download keeps in flight.
+     */
+    int downloadParallelism;
+
+    /**
+     * Maximum number of parts a parallel download stream holds in memory, in flight or waiting to be read. This
+     * bounds its memory use to about downloadPartSize * maxBufferedParts.
+     */
+    int maxBufferedParts;
+
+    /**
+     * Maximum number of parts an output stream uploads concurrently. The writer blocks once this many are pending.
+     */
+    int maxPartsInFlight;
+
+    /**
+     * Size of the first parts of a multipart upload. Part sizes double every 1000 parts (up to 1GB), so very large
+     * objects stay within S3's 10,000 part limit. Anything that fits in one part is sent with a single putObject.
+     * S3 requires at least 5MB.
+     */
+    int uploadPartSize;
+
+    /**
+     * If true, upload part buffers are allocated off-heap.
+     */
+    boolean directBuffers;
+
+    /**
+     * Upper bound on idle part buffers kept for reuse by this file system's output streams.
+     */
+    long maxPooledBufferBytes;
+
+    /**
+     * Maximum number of concurrent requests issued by a batch operation, such as statAll, listFilesParallel or the
+     * parts of a multipart copy.
+     */
+    int bulkParallelism;
+
+    /**
+     * Objects larger than this are moved with a multipart server-side copy, in parts of this size, rather than a
+     * single copyObject. S3 can't copy objects over 5GB in one request.
+     */
+    long copyPartSize;
+
+    /**
+     * Minimum size of the ranged GET issued by a read channel. Smaller reads fetch this much and serve the reads
+     * that follow from it.
+     */
+    int rangedReadBlockSize;
+
+    /**
+     * Maximum number of calls made through {@link S3FileSystem#async()} that run at once; the rest are queued. The
+     * default matches the AWS client's default connection pool.
+     */
+    int asyncConcurrency;
+
+    /**
+     * If true, saveContent stores an MD5 of the content in the object's user metadata, and skips the upload when
+     * the existing object already has the same checksum, size and content type. This costs a HEAD request per save,
+     * which is far cheaper than re-uploading unchanged content. Output streams are always uploaded.
+     */
+    boolean skipUnchangedUploads;
+}
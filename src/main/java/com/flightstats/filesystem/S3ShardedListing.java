@@ -0,0 +1,197 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.base.Throwables;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Lists everything under one prefix as many independent shards, at most parallelism of them at a time.
+ * <p>
+ * The prefix is walked like a directory tree: each '/'-delimited listing turns its common prefixes into new shards,
+ * so every level below the prefix is listed in parallel, however deep the single-child directories go. A directory
+ * whose first page holds fewer than two common prefixes is treated as flat, and its key space is cut into ranges at
+ * the next character instead. A range that still spans more than a page is split again, at the characters following
+ * the last key it has seen, until maxShards shards have been created.
+ */
+class S3ShardedListing {
+    private static final String BOUNDARY_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private final Executor executor;
+    private final int parallelism;
+    private final int maxShards;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger shards = new AtomicInteger();
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    S3ShardedListing(AmazonS3 s3, String bucketName, String prefix, Executor executor, int parallelism) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.maxShards = this.parallelism * 64;
+    }
+
+    /**
+     * Lists every key under the prefix, passing each summary to the consumer from the listing threads. Blocks until
+     * the whole prefix has been listed, and rethrows the first failure.
+     */
+    void list(Consumer<S3ObjectSummary> consumer) {
+        submit(() -> listDirectory(prefix, consumer));
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    private void listDirectory(String directory, Consumer<S3ObjectSummary> consumer) {
+        ObjectListing page = s3.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(directory).withDelimiter("/"));
+        if (page.isTruncated() && page.getCommonPrefixes().size() < 2) {
+            //flat key space. split it by key ranges instead.
+            String lower = null;
+            for (char c : BOUNDARY_CHARACTERS.toCharArray()) {
+                String upper = directory + c;
+                submitRange(directory, lower, upper, consumer);
+                lower = upper;
+            }
+            submitRange(directory, lower, null, consumer);
+            return;
+        }
+        while (true) {
+            page.getObjectSummaries().forEach(consumer);
+            page.getCommonPrefixes().forEach(commonPrefix -> submit(() -> listDirectory(commonPrefix, consumer)));
+            if (!page.isTruncated()) {
+                return;
+            }
+            page = s3.listNextBatchOfObjects(page);
+        }
+    }
+
+    /**
+     * Lists the keys under the prefix that are greater than startAfter (if set) and no greater than endAt (if set).
+     */
+    private void listRange(String rangePrefix, String startAfter, String endAt, Consumer<S3ObjectSummary> consumer) {
+        ObjectListing page = s3.listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(rangePrefix).withMarker(startAfter));
+        while (true) {
+            String last = null;
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                if (endAt != null && summary.getKey().compareTo(endAt) > 0) {
+                    return;
+                }
+                consumer.accept(summary);
+                last = summary.getKey();
+            }
+            if (!page.isTruncated() || last == null) {
+                return;
+            }
+            if (shards.get() < maxShards) {
+                //more than a page left. list the rest in parallel pieces.
+                splitRange(rangePrefix, last, endAt, consumer);
+                return;
+            }
+            page = s3.listNextBatchOfObjects(page);
+        }
+    }
+
+    /**
+     * Cuts (last, endAt] at the characters that follow last's common prefix with endAt, and one character deeper.
+     */
+    private void splitRange(String rangePrefix, String last, String endAt, Consumer<S3ObjectSummary> consumer) {
+        int depth = endAt == null ? rangePrefix.length() : commonPrefixLength(last, endAt);
+        TreeSet<String> boundaries = new TreeSet<>();
+        for (String base : new String[]{last.substring(0, depth), last.substring(0, Math.min(last.length(), depth + 1))}) {
+            for (char c : BOUNDARY_CHARACTERS.toCharArray()) {
+                String boundary = base + c;
+                if (boundary.compareTo(last) > 0 && (endAt == null || boundary.compareTo(endAt) < 0)) {
+                    boundaries.add(boundary);
+                }
+            }
+        }
+        String lower = last;
+        for (String upper : boundaries) {
+            submitRange(rangePrefix, lower, upper, consumer);
+            lower = upper;
+        }
+        submitRange(rangePrefix, lower, endAt, consumer);
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length() && a.charAt(length) == b.charAt(length)) {
+            length++;
+        }
+        return length;
+    }
+
+    private void submitRange(String rangePrefix, String startAfter, String endAt, Consumer<S3ObjectSummary> consumer) {
+        submit(() -> listRange(rangePrefix, startAfter, endAt, consumer));
+    }
+
+    private void submit(Runnable shard) {
+        shards.incrementAndGet();
+        outstanding.incrementAndGet();
+        queue.add(() -> {
+            try {
+                if (!done.isDone()) {
+                    shard.run();
+                }
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+            } finally {
+                if (outstanding.decrementAndGet() == 0) {
+                    done.complete(null);
+                }
+            }
+        });
+        drain();
+    }
+
+    /**
+     * Starts queued shards while fewer than parallelism are running. Shards only ever queue more work, never wait
+     * for it, so this is safe on a shared executor.
+     */
+    private void drain() {
+        while (!queue.isEmpty()) {
+            int current = running.get();
+            if (current >= parallelism) {
+                return;
+            }
+            if (!running.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Runnable next = queue.poll();
+            if (next == null) {
+                running.decrementAndGet();
+                continue;
+            }
+            executor.execute(() -> {
+                try {
+                    next.run();
+                } finally {
+                    running.decrementAndGet();
+                    drain();
+                }
+            });
+        }
+    }
+}
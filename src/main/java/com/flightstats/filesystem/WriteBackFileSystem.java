@@ -0,0 +1,716 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.SneakyThrows;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Puts a local disk in front of a slower FileSystem, typically S3. Writes return once the content has been synced
+ * to a staging directory and recorded in a journal there; background threads then upload it to the delegate.
+ * <p>
+ * Writing a file again before its upload has started replaces the pending upload, so only the latest version is
+ * sent. At most maxPendingUploads files wait at a time; writers block beyond that. Reads, stats and listings through
+ * this instance see pending writes. On construction the journal is replayed, so writes acknowledged before a crash or
+ * restart are still uploaded; the journal is compacted as uploads finish, so it stays about the size of the backlog.
+ * <p>
+ * An upload is given up after a few attempts. It is then reported by {@link #getFailedUploads}, and by flush, move
+ * and transferTo of the file, until the file is written again or deleted. Its staged copy is kept, so it is tried
+ * again on the next start, and reads and listings through this instance go on seeing it meanwhile.
+ * <p>
+ * Moves, transfers and deletes wait for any pending upload of the files they touch first, so they can't be
+ * overtaken by it.
+ */
+public class WriteBackFileSystem extends ForwardingFileSystem implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(WriteBackFileSystem.class);
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final int MAX_UPLOAD_ATTEMPTS = 5;
+    private static final int COMPACTION_RECORDS = 10_000;
+
+    private final Path stagingDirectory;
+    private final Journal journal;
+    private final Map<Path, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Path, Failure> failed = new ConcurrentHashMap<>();
+    private final BlockingQueue<Path> uploads = new LinkedBlockingQueue<>();
+    private final Semaphore permits;
+    private final ExecutorService uploaders;
+
+    public WriteBackFileSystem(FileSystem delegate, Path stagingDirectory, int uploadThreads, int maxPendingUploads) {
+        super(delegate);
+        this.stagingDirectory = stagingDirectory;
+        this.permits = new Semaphore(maxPendingUploads);
+        stagingDirectory.toFile().mkdirs();
+        this.journal = new Journal(stagingDirectory.resolve("journal"));
+        //recovered writes don't take permits, so there may be more than maxPendingUploads of them.
+        recover();
+        this.uploaders = Executors.newFixedThreadPool(uploadThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("write-back-%d").build());
+        for (int i = 0; i < uploadThreads; i++) {
+            uploaders.execute(this::uploadLoop);
+        }
+    }
+
+    /**
+     * The number of files written locally but not yet uploaded.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * The files whose upload was given up, with the last failure of each.
+     */
+    public Map<Path, Exception> getFailedUploads() {
+        Map<Path, Exception> result = new LinkedHashMap<>();
+        failed.forEach((fileName, failure) -> result.put(fileName, failure.cause));
+        return result;
+    }
+
+    /**
+     * Blocks until every write made before the call has been uploaded or given up, and throws if any upload has
+     * been given up.
+     */
+    public void flush() {
+        new ArrayList<>(pending.keySet()).forEach(this::await);
+        if (!failed.isEmpty()) {
+            IOException e = new IOException("Uploads of " + failed.keySet() + " failed");
+            failed.values().forEach(failure -> e.addSuppressed(failure.cause));
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits for any pending upload of the file, and throws if it was given up.
+     */
+    private void flush(Path fileName) {
+        await(fileName);
+        Failure failure = failed.get(fileName);
+        if (failure != null) {
+            throw new UncheckedIOException(new IOException("Upload of " + fileName + " failed", failure.cause));
+        }
+    }
+
+    private void await(Path fileName) {
+        synchronized (pending) {
+            while (pending.containsKey(fileName)) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for the upload of " + fileName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uploads everything pending, then stops the upload threads.
+     */
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            uploaders.shutdownNow();
+            journal.close();
+        }
+    }
+
+    @Override
+    public OutputStream outputStream(Path fileName) {
+        return outputStream(fileName, null);
+    }
+
+    @Override
+    @SneakyThrows
+    public OutputStream outputStream(Path fileName, String contentType) {
+        String id = UUID.randomUUID().toString();
+        FileOutputStream file = new FileOutputStream(staged(id).toFile());
+        return new FilterOutputStream(file) {
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    file.flush();
+                    file.getFD().sync();
+                } finally {
+                    file.close();
+                }
+                accept(id, fileName, contentType);
+            }
+        };
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName) {
+        saveContent(content, fileName, null);
+    }
+
+    @Override
+    public void saveContent(String content, Path fileName, String contentType) {
+        saveContent(content.getBytes(UTF_8), fileName, contentType);
+    }
+
+    @Override
+    public void saveContent(byte[] content, Path fileName, String contentType) {
+        try (OutputStream out = outputStream(fileName, contentType)) {
+            out.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream inputStream(Path fileName) {
+        Pending write = local(fileName);
+        if (write != null) {
+            try {
+                return Files.newInputStream(staged(write.id));
+            } catch (NoSuchFileException e) {
+                //uploaded or dropped in the meantime.
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return delegate().inputStream(fileName);
+    }
+
+    @Override
+    public String readContents(Path fileName) {
+        Pending write = local(fileName);
+        if (write != null) {
+            try {
+                return new String(Files.readAllBytes(staged(write.id)), UTF_8);
+            } catch (NoSuchFileException e) {
+                //uploaded or dropped in the meantime.
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return delegate().readContents(fileName);
+    }
+
+    @Override
+    public Stream<String> lines(Path fileName, Charset charset) {
+        return local(fileName) != null ? RecordReader.lines(inputStream(fileName), charset) : delegate().lines(fileName, charset);
+    }
+
+    @Override
+    public Stream<byte[]> records(Path fileName, RecordFormat format) {
+        return local(fileName) != null ? new RecordReader(inputStream(fileName), format).stream() : delegate().records(fileName, format);
+    }
+
+    @Override
+    public SeekableByteChannel readChannel(Path fileName) {
+        Pending write = local(fileName);
+        if (write != null) {
+            try {
+                return FileChannel.open(staged(write.id), READ);
+            } catch (NoSuchFileException e) {
+                //uploaded or dropped in the meantime.
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return delegate().readChannel(fileName);
+    }
+
+    @Override
+    public ByteBuffer read(Path fileName, long offset, int length) {
+        Pending write = local(fileName);
+        if (write != null) {
+            try (FileChannel channel = FileChannel.open(staged(write.id), READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+                while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                }
+                buffer.flip();
+                return buffer;
+            } catch (NoSuchFileException e) {
+                //uploaded or dropped in the meantime.
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return delegate().read(fileName, offset, length);
+    }
+
+    @Override
+    public boolean exists(Path fileName) {
+        return local(fileName) != null || delegate().exists(fileName);
+    }
+
+    @Override
+    public Optional<FileMetadata> stat(Path fileName) {
+        Pending write = local(fileName);
+        if (write != null) {
+            File file = staged(write.id).toFile();
+            if (file.exists()) {
+                return Optional.of(new FileMetadata(fileName, file.length(), Instant.ofEpochMilli(file.lastModified()), null, write.contentType));
+            }
+        }
+        return delegate().stat(fileName);
+    }
+
+    @Override
+    public Map<Path, FileMetadata> statAll(Collection<Path> fileNames) {
+        Map<Path, FileMetadata> result = new LinkedHashMap<>();
+        fileNames.forEach(fileName -> stat(fileName).ifPresent(metadata -> result.put(fileName, metadata)));
+        return result;
+    }
+
+    @Override
+    public List<Path> listFiles(Path prefixPath) {
+        return withPending(prefixPath, delegate().listFiles(prefixPath));
+    }
+
+    @Override
+    public Stream<Path> streamFiles(Path prefixPath) {
+        return listFiles(prefixPath).stream();
+    }
+
+    @Override
+    public List<Path> listFilesParallel(Path prefixPath, boolean sorted) {
+        List<Path> files = withPending(prefixPath, delegate().listFilesParallel(prefixPath, false));
+        if (sorted) {
+            files.sort(Comparator.comparing(Path::toString));
+        }
+        return files;
+    }
+
+    /**
+     * Local writes replace whatever the delegate lists for the same file.
+     */
+    @Override
+    public Stream<FileMetadata> streamFileMetadata(Path prefixPath) {
+        Map<Path, FileMetadata> files = new LinkedHashMap<>();
+        try (Stream<FileMetadata> listed = delegate().streamFileMetadata(prefixPath)) {
+            listed.forEach(metadata -> files.put(metadata.getPath(), metadata));
+        }
+        String prefix = prefixPath.toString();
+        localFiles()
+                .filter(path -> path.toString().startsWith(prefix))
+                .forEach(path -> stat(path).ifPresent(metadata -> files.put(path, metadata)));
+        return files.values().stream();
+    }
+
+    @Override
+    public List<Path> listDirectories(Path directory) {
+        Set<Path> directories = new LinkedHashSet<>(delegate().listDirectories(directory));
+        localFiles().filter(fileName -> directory.toString().isEmpty() || fileName.startsWith(directory)).forEach(fileName -> {
+            Path relative = directory.relativize(fileName);
+            if (relative.getNameCount() > 1) {
+                directories.add(directory.resolve(relative.getName(0)));
+            }
+        });
+        return new ArrayList<>(directories);
+    }
+
+    /**
+     * The write whose staged copy reads of the file see: the pending one, or else the one given up on.
+     */
+    private Pending local(Path fileName) {
+        Pending write = pending.get(fileName);
+        if (write != null) {
+            return write;
+        }
+        Failure failure = failed.get(fileName);
+        return failure == null ? null : failure.write;
+    }
+
+    private Stream<Path> localFiles() {
+        return Stream.concat(pending.keySet().stream(), failed.keySet().stream()).distinct();
+    }
+
+    private List<Path> withPending(Path prefixPath, List<Path> listed) {
+        String prefix = prefixPath.toString();
+        Set<Path> files = new LinkedHashSet<>(listed);
+        localFiles().filter(path -> path.toString().startsWith(prefix)).forEach(files::add);
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * A pending or failed upload of the destination is dropped once it is done, so it can't overwrite the moved file.
+     */
+    @Override
+    public void move(Path file, Path destinationDirectory) {
+        flush(file);
+        supersede(destinationDirectory.resolve(file.getFileName()));
+        delegate().move(file, destinationDirectory);
+    }
+
+    @Override
+    public BatchResult moveAll(Collection<Path> files, Path destinationDirectory) {
+        files.forEach(file -> {
+            flush(file);
+            supersede(destinationDirectory.resolve(file.getFileName()));
+        });
+        return delegate().moveAll(files, destinationDirectory);
+    }
+
+    /**
+     * A failed upload of the file is dropped, staged copy and all, rather than reported.
+     */
+    @Override
+    public void delete(Path fileName) {
+        supersede(fileName);
+        delegate().delete(fileName);
+    }
+
+    @Override
+    public BatchResult deleteAll(Collection<Path> fileNames) {
+        fileNames.forEach(this::supersede);
+        return delegate().deleteAll(fileNames);
+    }
+
+    /**
+     * Waits out any pending upload of a file about to be replaced or deleted in the delegate, and drops it if it
+     * was given up.
+     */
+    private void supersede(Path fileName) {
+        await(fileName);
+        forget(fileName);
+    }
+
+    private void forget(Path fileName) {
+        Failure failure = failed.remove(fileName);
+        if (failure != null) {
+            discard(failure.write);
+        }
+    }
+
+    /**
+     * Into this instance, a pending or failed upload of the destination is dropped once it is done, as for move.
+     */
+    @Override
+    public void transferTo(Path source, FileSystem destinationFileSystem, Path destination) {
+        flush(source);
+        if (destinationFileSystem == this) {
+            supersede(destination);
+            delegate().transferTo(source, delegate(), destination);
+        } else {
+            delegate().transferTo(source, destinationFileSystem, destination);
+        }
+    }
+
+    private Path staged(String id) {
+        return stagingDirectory.resolve(id);
+    }
+
+    /**
+     * Records a staged write and queues its upload, or replaces a pending write of the same file that hasn't
+     * started uploading yet. The permit is taken first, so a writer never blocks with a write journaled but not
+     * pending.
+     */
+    private void accept(String id, Path fileName, String contentType) {
+        permits.acquireUninterruptibly();
+        Pending write = new Pending(id, fileName, contentType, true);
+        Pending previous;
+        //journaled and made pending together, so a compaction sees either both or neither.
+        synchronized (journal) {
+            journal.append(put(write));
+            previous = pending.put(fileName, write);
+        }
+        forget(fileName);
+        if (previous == null) {
+            uploads.add(fileName);
+        } else {
+            //already queued or uploading; the upload loop picks up the latest.
+            if (previous.permitted) {
+                permits.release();
+            }
+            if (previous.take()) {
+                discard(previous);
+            }
+        }
+        compactIfNeeded();
+    }
+
+    private static String[] put(Pending write) {
+        return new String[]{"PUT", write.id, write.contentType == null ? "" : write.contentType, write.fileName.toString()};
+    }
+
+    private void discard(Pending write) {
+        journal.append("DONE", write.id);
+        try {
+            Files.deleteIfExists(staged(write.id));
+        } catch (IOException e) {
+            logger.warn("Unable to delete staged file " + staged(write.id), e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with just the pending writes, once finished ones make up most of it.
+     */
+    private void compactIfNeeded() {
+        synchronized (journal) {
+            if (journal.getRecordCount() > COMPACTION_RECORDS + 2 * pending.size()) {
+                journal.rewrite(records());
+            }
+        }
+    }
+
+    /**
+     * The journal records of the writes not yet uploaded, including those given up on.
+     */
+    private List<String[]> records() {
+        List<String[]> records = new ArrayList<>();
+        //a write whose upload has just finished may still be pending, but its staged file is gone.
+        pending.values().stream().filter(write -> Files.exists(staged(write.id))).forEach(write -> records.add(put(write)));
+        failed.values().forEach(failure -> records.add(put(failure.write)));
+        return records;
+    }
+
+    private void uploadLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Path fileName;
+            try {
+                fileName = uploads.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            upload(fileName);
+        }
+    }
+
+    private void upload(Path fileName) {
+        Pending write;
+        int attempts = 0;
+        while ((write = pending.get(fileName)) != null) {
+            if (!write.take()) {
+                //replaced before we got to it; the replacement is in the map now.
+                continue;
+            }
+            try (InputStream in = Files.newInputStream(staged(write.id));
+                 OutputStream out = delegate().outputStream(fileName, write.contentType)) {
+                ByteStreams.copy(in, out);
+            } catch (IOException | RuntimeException e) {
+                attempts++;
+                //a missing staged file won't turn up on a retry.
+                if (attempts >= MAX_UPLOAD_ATTEMPTS || e instanceof NoSuchFileException) {
+                    logger.error("Upload of " + fileName + " failed " + attempts + " times, giving up", e);
+                    if (finished(fileName, write, new Failure(write, e))) {
+                        return;
+                    }
+                    //written again meanwhile. the new version gets attempts of its own.
+                    discard(write);
+                    attempts = 0;
+                    continue;
+                }
+                logger.warn("Upload of " + fileName + " failed, retrying", e);
+                write.release();
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            discard(write);
+            if (finished(fileName, write, null)) {
+                return;
+            }
+            attempts = 0;
+        }
+    }
+
+    /**
+     * Takes the write out of pending, unless it has been replaced meanwhile, and wakes anyone waiting on it.
+     */
+    private boolean finished(Path fileName, Pending write, Failure failure) {
+        synchronized (pending) {
+            if (!pending.remove(fileName, write)) {
+                return false;
+            }
+            if (failure != null) {
+                failed.put(fileName, failure);
+            }
+            if (write.permitted) {
+                permits.release();
+            }
+            pending.notifyAll();
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Replays the journal: the latest unfinished write of each file is queued again, and everything else is
+     * dropped. The journal is then rewritten with just those writes.
+     */
+    private void recover() {
+        Map<String, Pending> unfinished = new LinkedHashMap<>();
+        for (String[] record : journal.read()) {
+            if (record[0].equals("PUT") && record.length == 4) {
+                unfinished.put(record[1], new Pending(record[1], Paths.get(record[3]), record[2].isEmpty() ? null : record[2], false));
+            } else if (record[0].equals("DONE")) {
+                unfinished.remove(record[1]);
+            }
+        }
+        Map<Path, Pending> latest = new LinkedHashMap<>();
+        for (Pending write : unfinished.values()) {
+            if (!Files.exists(staged(write.id))) {
+                logger.warn("Staged file for " + write.fileName + " is missing, skipping it");
+                continue;
+            }
+            Pending replaced = latest.put(write.fileName, write);
+            if (replaced != null) {
+                discard(replaced);
+            }
+        }
+        journal.rewrite(latest.values().stream().map(WriteBackFileSystem::put).collect(toList()));
+        for (Pending write : latest.values()) {
+            pending.put(write.fileName, write);
+            uploads.add(write.fileName);
+        }
+        if (!latest.isEmpty()) {
+            logger.info("Recovered " + latest.size() + " pending uploads from " + stagingDirectory);
+        }
+    }
+
+    private static class Pending {
+        private final String id;
+        private final Path fileName;
+        private final String contentType;
+        private final boolean permitted;
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        /**
+         * @param permitted whether the write holds one of the maxPendingUploads permits. Recovered writes don't.
+         */
+        private Pending(String id, Path fileName, String contentType, boolean permitted) {
+            this.id = id;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.permitted = permitted;
+        }
+
+        /**
+         * Claims the staged file, for either uploading or discarding. Only one caller wins.
+         */
+        boolean take() {
+            return taken.compareAndSet(false, true);
+        }
+
+        void release() {
+            taken.set(false);
+        }
+    }
+
+    private static class Failure {
+        private final Pending write;
+        private final Exception cause;
+
+        private Failure(Pending write, Exception cause) {
+            this.write = write;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * An append-only, tab-separated log of staged writes and finished uploads, synced on every append.
+     */
+    private static class Journal {
+        private final Path file;
+        private FileChannel channel;
+        private int recordCount;
+
+        Journal(Path file) {
+            this.file = file;
+            this.channel = open();
+        }
+
+        @SneakyThrows
+        private FileChannel open() {
+            return FileChannel.open(file, CREATE, WRITE, APPEND);
+        }
+
+        @SneakyThrows
+        synchronized List<String[]> read() {
+            List<String[]> records = Files.readAllLines(file, UTF_8).stream()
+                    .filter(line -> !line.isEmpty())
+                    .map(line -> line.split("\t", 4))
+                    .collect(toList());
+            recordCount = records.size();
+            return records;
+        }
+
+        /**
+         * The number of records in the journal file, finished or not.
+         */
+        synchronized int getRecordCount() {
+            return recordCount;
+        }
+
+        synchronized void append(String... fields) {
+            try {
+                ByteBuffer line = ByteBuffer.wrap((String.join("\t", fields) + "\n").getBytes(UTF_8));
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+                channel.force(false);
+                recordCount++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @SneakyThrows
+        synchronized void rewrite(List<String[]> records) {
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            List<String> lines = records.stream().map(fields -> String.join("\t", fields)).collect(toList());
+            Files.write(temp, lines, UTF_8);
+            try (FileChannel tempChannel = FileChannel.open(temp, WRITE)) {
+                tempChannel.force(true);
+            }
+            channel.close();
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            channel = open();
+            recordCount = records.size();
+        }
+
+        @SneakyThrows
+        synchronized void close() {
+            channel.close();
+        }
+    }
+}
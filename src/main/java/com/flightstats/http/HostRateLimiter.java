@@ -0,0 +1,173 @@
+package com.flightstats.http;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A token-bucket rate limiter with one bucket per route. By default a route is the host (and port) of the request
+ * URI, but any function of the URI can be supplied.
+ * <p>
+ * Buckets can be paused, which is how an {@link HttpTemplate} honors a Retry-After header on a 429 or 503: every
+ * caller of that route waits out the pause instead of hammering the upstream.
+ */
+public class HostRateLimiter {
+    private final double defaultPermitsPerSecond;
+    private final Function<URI, String> routeKey;
+    private final Map<String, Double> routeRates = new ConcurrentHashMap<>();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Limits every host to the given rate.
+     */
+    public HostRateLimiter(double defaultPermitsPerSecond) {
+        this(defaultPermitsPerSecond, HostRateLimiter::hostOf);
+    }
+
+    /**
+     * Limits every route, as computed by {@code routeKey}, to the given rate.
+     */
+    public HostRateLimiter(double defaultPermitsPerSecond, Function<URI, String> routeKey) {
+        this.defaultPermitsPerSecond = defaultPermitsPerSecond;
+        this.routeKey = routeKey;
+    }
+
+    /**
+     * Override the rate for a single route. Routes without an override use the default rate.
+     */
+    public HostRateLimiter setRate(String route, double permitsPerSecond) {
+        routeRates.put(route, permitsPerSecond);
+        Bucket bucket = buckets.get(route);
+        if (bucket != null) {
+            bucket.limiter.setRate(permitsPerSecond);
+        }
+        return this;
+    }
+
+    /**
+     * Blocks until a permit for the URI's route is available.
+     */
+    public void acquire(URI uri) {
+        Bucket bucket = bucketFor(uri);
+        bucket.awaitPause();
+        bucket.limiter.acquire();
+    }
+
+    /**
+     * Takes a permit for the URI's route only if one is available right now.
+     */
+    public boolean tryAcquire(URI uri) {
+        Bucket bucket = bucketFor(uri);
+        return bucket.remainingPauseNanos() <= 0 && bucket.limiter.tryAcquire();
+    }
+
+    /**
+     * Waits up to the timeout for a permit for the URI's route.
+     */
+    public boolean tryAcquire(URI uri, long timeout, TimeUnit unit) {
+        Bucket bucket = bucketFor(uri);
+        long timeoutNanos = unit.toNanos(timeout);
+        long pauseNanos = bucket.remainingPauseNanos();
+        if (pauseNanos > timeoutNanos) {
+            return false;
+        }
+        if (pauseNanos > 0) {
+            Uninterruptibles.sleepUninterruptibly(pauseNanos, TimeUnit.NANOSECONDS);
+        }
+        return bucket.limiter.tryAcquire(1, Math.max(0, timeoutNanos - pauseNanos), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops handing out permits for the URI's route for the given duration.
+     */
+    public void pause(URI uri, Duration duration) {
+        bucketFor(uri).pauseFor(duration);
+    }
+
+    /**
+     * Pauses the route if the response is a 429 or 503 carrying a Retry-After header.
+     */
+    void onResponse(URI uri, Response response) {
+        if (response.getCode() != 429 && response.getCode() != 503 || response.getHeaders() == null) {
+            return;
+        }
+        parseRetryAfter(header(response, "Retry-After")).ifPresent(d -> pause(uri, d));
+    }
+
+    /**
+     * The first value of the header, whatever the case of its name; header names are case-insensitive.
+     */
+    private static String header(Response response, String name) {
+        return response.getHeaders().entries().stream()
+                .filter(header -> header.getKey().equalsIgnoreCase(name))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Parses a Retry-After value, which is either a number of seconds or an HTTP date.
+     */
+    static Optional<Duration> parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Optional.empty();
+        }
+        String trimmed = value.trim();
+        try {
+            return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(trimmed))));
+        } catch (NumberFormatException e) {
+            try {
+                Duration untilDate = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(trimmed, DateTimeFormatter.RFC_1123_DATE_TIME));
+                return Optional.of(untilDate.isNegative() ? Duration.ZERO : untilDate);
+            } catch (DateTimeParseException e1) {
+                return Optional.empty();
+            }
+        }
+    }
+
+    private Bucket bucketFor(URI uri) {
+        String route = routeKey.apply(uri);
+        return buckets.computeIfAbsent(route, r -> new Bucket(RateLimiter.create(routeRates.getOrDefault(r, defaultPermitsPerSecond))));
+    }
+
+    private static String hostOf(URI uri) {
+        return uri.getPort() == -1 ? String.valueOf(uri.getHost()) : uri.getHost() + ":" + uri.getPort();
+    }
+
+    private static class Bucket {
+        private final RateLimiter limiter;
+        private volatile long pausedUntilNanos = System.nanoTime();
+
+        private Bucket(RateLimiter limiter) {
+            this.limiter = limiter;
+        }
+
+        private long remainingPauseNanos() {
+            return pausedUntilNanos - System.nanoTime();
+        }
+
+        private synchronized void pauseFor(Duration duration) {
+            long until = System.nanoTime() + duration.toNanos();
+            if (until - pausedUntilNanos > 0) {
+                pausedUntilNanos = until;
+            }
+        }
+
+        private void awaitPause() {
+            long remaining;
+            while ((remaining = remainingPauseNanos()) > 0) {
+                Uninterruptibles.sleepUninterruptibly(remaining, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
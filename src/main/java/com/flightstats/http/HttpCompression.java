@@ -0,0 +1,92 @@
+package com.flightstats.http;
+
+import lombok.Value;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+
+import java.util.Locale;
+
+/**
+ * Opt-in content encoding for an {@link HttpTemplate}.
+ * <p>
+ * When enabled, requests advertise gzip/deflate via Accept-Encoding and compressed responses are inflated as the body
+ * is read. Request bodies of at least {@code requestThreshold} bytes are gzipped on the way out, with the
+ * Content-Encoding header set. Bodies of unknown length are never compressed.
+ */
+@Value
+public class HttpCompression {
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * No compression at all. This is the default for every HttpTemplate.
+     */
+    public static final HttpCompression NONE = new HttpCompression(false, -1);
+
+    boolean acceptCompressedResponses;
+
+    /**
+     * Request bodies at least this large (in bytes) are gzipped. Negative disables request compression.
+     */
+    long requestThreshold;
+
+    /**
+     * Accept compressed responses, and gzip request bodies of at least {@code requestThreshold} bytes.
+     */
+    public static HttpCompression gzip(long requestThreshold) {
+        return new HttpCompression(true, requestThreshold);
+    }
+
+    /**
+     * Accept compressed responses, but always send request bodies uncompressed.
+     */
+    public static HttpCompression responsesOnly() {
+        return new HttpCompression(true, -1);
+    }
+
+    String acceptEncodingHeader() {
+        return acceptCompressedResponses ? GZIP + "," + DEFLATE : null;
+    }
+
+    boolean shouldCompress(HttpEntity entity) {
+        if (requestThreshold < 0 || entity == null || entity.getContentEncoding() != null) {
+            return false;
+        }
+        long length = entity.getContentLength();
+        return length >= 0 && length >= requestThreshold;
+    }
+
+    HttpEntity compress(HttpEntity entity) {
+        return shouldCompress(entity) ? new GzipCompressingEntity(entity) : entity;
+    }
+
+    /**
+     * Wraps the response entity so that it is inflated while being read, if the server compressed it. Clients that
+     * already decode responses (HttpClientBuilder's default) strip the Content-Encoding header, so this never
+     * decodes twice.
+     */
+    HttpEntity decompress(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (!acceptCompressedResponses || entity == null) {
+            return entity;
+        }
+        Header encoding = response.getFirstHeader(CONTENT_ENCODING);
+        if (encoding == null || encoding.getValue() == null) {
+            return entity;
+        }
+        String coding = encoding.getValue().trim().toLowerCase(Locale.ROOT);
+        if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+            return new GzipDecompressingEntity(entity);
+        }
+        if (coding.equals(DEFLATE)) {
+            return new DeflateDecompressingEntity(entity);
+        }
+        return entity;
+    }
+}
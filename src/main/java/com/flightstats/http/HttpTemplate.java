@@ -52,24 +52,45 @@ public class HttpTemplate {
     private final Retryer<Response> retryer;
     private final String defaultContentType;
     private final String acceptType;
+    private final HttpCompression compression;
+    private final Optional<HostRateLimiter> rateLimiter;
 
     public HttpTemplate(HttpClient client, Retryer<Response> retryer, String contentType, String acceptType) {
-        this.client = client;
-        this.gson = Optional.empty();
-        this.retryer = retryer;
-        this.defaultContentType = contentType;
-        this.acceptType = acceptType;
-        this.uuidGenerator = new UUIDGenerator();
+        this(client, Optional.empty(), retryer, contentType, acceptType, new UUIDGenerator(), HttpCompression.NONE, Optional.empty());
     }
 
     @Inject
     public HttpTemplate(HttpClient client, Gson gson, Retryer<Response> retryer, UUIDGenerator uuidGenerator) {
+        this(client, Optional.ofNullable(gson), retryer, APPLICATION_JSON, APPLICATION_JSON, uuidGenerator, HttpCompression.NONE, Optional.empty());
+    }
+
+    private HttpTemplate(HttpClient client, Optional<Gson> gson, Retryer<Response> retryer, String defaultContentType,
+                         String acceptType, UUIDGenerator uuidGenerator, HttpCompression compression,
+                         Optional<HostRateLimiter> rateLimiter) {
         this.client = client;
-        this.uuidGenerator = uuidGenerator;
-        this.gson = Optional.ofNullable(gson);
+        this.gson = gson;
         this.retryer = retryer;
-        this.defaultContentType = APPLICATION_JSON;
-        this.acceptType = APPLICATION_JSON;
+        this.defaultContentType = defaultContentType;
+        this.acceptType = acceptType;
+        this.uuidGenerator = uuidGenerator;
+        this.compression = compression;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns a copy of this template that uses the given compression settings for every request.
+     */
+    public HttpTemplate withCompression(HttpCompression compression) {
+        return new HttpTemplate(client, gson, retryer, defaultContentType, acceptType, uuidGenerator, compression, rateLimiter);
+    }
+
+    /**
+     * Returns a copy of this template that takes a permit from the given limiter before every attempt, and pauses
+     * the route when an upstream answers 429/503 with a Retry-After header. With a limiter in place, a 429 on a
+     * post or put is surfaced to the Retryer as an HttpException, just like a 502-504.
+     */
+    public HttpTemplate withRateLimiter(HostRateLimiter rateLimiter) {
+        return new HttpTemplate(client, gson, retryer, defaultContentType, acceptType, uuidGenerator, compression, Optional.of(rateLimiter));
     }
 
     public <T> T get(String hostUrl, String path, Function<String, T> responseCreator, NameValuePair... queryParams) {
@@ -87,16 +108,34 @@ public class HttpTemplate {
     }
 
     public <T> T get(URI uri, Function<String, T> responseCreator) {
+        return getAndMap(uri, responseCreator, Collections.emptyMap());
+    }
+
+    private <T> T getAndMap(URI uri, Function<String, T> responseCreator, Map<String, String> extraHeaders) {
         AtomicReference<T> result = new AtomicReference<>();
         get(uri, (Response response) -> {
             if (isFailedStatusCode(response.getCode())) {
                 throw new HttpException(new Details(response.getCode(), "Get failed to: " + uri + ". response: " + response));
             }
             result.set(responseCreator.apply(response.getBodyString()));
-        });
+        }, extraHeaders);
         return result.get();
     }
 
+    /**
+     * Get from a precompiled template, filling its variables in order. The template's default headers are sent.
+     */
+    public Response get(RequestTemplate template, Object... variables) {
+        return get(template.expand(variables), template.getDefaultHeaders());
+    }
+
+    /**
+     * Get from a precompiled template, filling its variables in order, and convert the body of a successful response.
+     */
+    public <T> T get(RequestTemplate template, Function<String, T> responseCreator, Object... variables) {
+        return getAndMap(template.expand(variables), responseCreator, template.getDefaultHeaders());
+    }
+
     public int get(String uri, Consumer<Response> responseConsumer) {
         return get(URI.create(uri), responseConsumer).getCode();
     }
@@ -162,8 +201,12 @@ public class HttpTemplate {
 
     private Response handleRequest(HttpRequestBase request, Consumer<Response> responseConsumer) {
         request.setHeader("Accept", acceptType);
+        addAcceptEncoding(request);
         try {
-            Response response = retryer.call(() -> convertHttpResponse(client.execute(request)));
+            Response response = retryer.call(() -> {
+                acquirePermit(request.getURI());
+                return throttled(request.getURI(), convertHttpResponse(client.execute(request)));
+            });
             responseConsumer.accept(response);
             return response;
         } catch (ExecutionException | RetryException e) {
@@ -176,7 +219,7 @@ public class HttpTemplate {
     private Response convertHttpResponse(HttpResponse httpResponse) throws IOException {
         int statusCode = httpResponse.getStatusLine().getStatusCode();
         byte[] body = new byte[0];
-        HttpEntity entity = httpResponse.getEntity();
+        HttpEntity entity = compression.decompress(httpResponse);
         if (entity != null) {
             InputStream content = entity.getContent();
             body = ByteStreams.toByteArray(content);
@@ -184,6 +227,30 @@ public class HttpTemplate {
         return new Response(statusCode, body, mapHeaders(httpResponse));
     }
 
+    private void acquirePermit(URI uri) {
+        rateLimiter.ifPresent(limiter -> limiter.acquire(uri));
+    }
+
+    private Response throttled(URI uri, Response response) {
+        rateLimiter.ifPresent(limiter -> limiter.onResponse(uri, response));
+        return response;
+    }
+
+    private void addAcceptEncoding(HttpRequestBase request) {
+        String acceptEncoding = compression.acceptEncodingHeader();
+        if (acceptEncoding != null && !request.containsHeader(HttpCompression.ACCEPT_ENCODING)) {
+            request.setHeader(HttpCompression.ACCEPT_ENCODING, acceptEncoding);
+        }
+    }
+
+    private HttpEntity compressRequestBody(HttpEntityEnclosingRequestBase request, HttpEntity entity) {
+        HttpEntity compressed = compression.compress(entity);
+        if (compressed != entity) {
+            request.setHeader(HttpCompression.CONTENT_ENCODING, HttpCompression.GZIP);
+        }
+        return compressed;
+    }
+
     private Multimap<String, String> mapHeaders(HttpResponse response) {
         Header[] headers = response.getAllHeaders();
         ListMultimap<String, Header> headersByName = Multimaps.index(Arrays.asList(headers), Header::getName);
@@ -210,7 +277,11 @@ public class HttpTemplate {
     }
 
     private Response executePost(String fullUri, Consumer<Response> responseConsumer, String contentType, HttpEntity entity, Map<String, String> extraHeaders) {
-        HttpPost httpPost = new HttpPost(fullUri);
+        return executePost(URI.create(fullUri), responseConsumer, contentType, entity, extraHeaders);
+    }
+
+    private Response executePost(URI uri, Consumer<Response> responseConsumer, String contentType, HttpEntity entity, Map<String, String> extraHeaders) {
+        HttpPost httpPost = new HttpPost(uri);
         addExtraHeaders(httpPost, extraHeaders);
         return execute(httpPost, responseConsumer, contentType, entity);
     }
@@ -231,15 +302,17 @@ public class HttpTemplate {
                 try {
                     httpRequest.setHeader("Content-Type", contentType);
                     httpRequest.setHeader("Accept", acceptType);
-                    httpRequest.setEntity(entity);
+                    addAcceptEncoding(httpRequest);
+                    httpRequest.setEntity(compressRequestBody(httpRequest, entity));
+                    acquirePermit(httpRequest.getURI());
                     HttpResponse httpResponse = client.execute(httpRequest);
                     int statusCode = httpResponse.getStatusLine().getStatusCode();
-                    byte[] body = ByteStreams.toByteArray(httpResponse.getEntity().getContent());
+                    byte[] body = ByteStreams.toByteArray(compression.decompress(httpResponse).getContent());
+                    Response response = throttled(httpRequest.getURI(), new Response(statusCode, body, mapHeaders(httpResponse)));
                     if (isRetryableStatusCode(statusCode)) {
                         logger.error("Internal server error, status code " + statusCode);
                         throw new HttpException(new Details(statusCode, httpRequest.getMethod() + " failed to: " + httpRequest.getURI() + ".  Status = " + statusCode + ", message = " + new String(body)));
                     }
-                    Response response = new Response(statusCode, body, mapHeaders(httpResponse));
                     responseConsumer.accept(response);
                     return response;
                 } finally {
@@ -257,7 +330,7 @@ public class HttpTemplate {
     }
 
     private boolean isRetryableStatusCode(int responseStatusCode) {
-        return 502 <= responseStatusCode && responseStatusCode <= 504;
+        return (502 <= responseStatusCode && responseStatusCode <= 504) || (responseStatusCode == 429 && rateLimiter.isPresent());
     }
 
     private String convertBodyToString(Object bodyToPost) {
@@ -280,12 +353,20 @@ public class HttpTemplate {
 
     public Response post(URI uri, byte[] bytes, Map<String, String> extraHeaders) {
         try {
-            return executePost(uri.toString(), extraHeaders.getOrDefault("Content-Type", defaultContentType), new ByteArrayEntity(bytes), extraHeaders);
+            return executePost(uri, x -> {
+            }, extraHeaders.getOrDefault("Content-Type", defaultContentType), new ByteArrayEntity(bytes), extraHeaders);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Post to a precompiled template, filling its variables in order. The template's default headers are sent.
+     */
+    public Response post(RequestTemplate template, byte[] bytes, String contentType, Object... variables) {
+        return post(template.expand(variables), bytes, contentType, template.getDefaultHeaders());
+    }
+
     /**
      * Fire &amp; Forget...don't care about the response at all.
      */
@@ -326,7 +407,7 @@ public class HttpTemplate {
 
     public Response put(URI uri, byte[] bytes, String contentType) {
         try {
-            HttpPut httpPut = new HttpPut(uri.toString());
+            HttpPut httpPut = new HttpPut(uri);
             return execute(httpPut, contentType, new ByteArrayEntity(bytes));
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -374,10 +455,12 @@ public class HttpTemplate {
         try {
             return retryer.call(() -> {
                 HttpDelete delete = new HttpDelete(uri);
+                addAcceptEncoding(delete);
                 try {
                     try {
+                        acquirePermit(uri);
                         HttpResponse response = client.execute(delete);
-                        return convertHttpResponse(response);
+                        return throttled(uri, convertHttpResponse(response));
                     } catch (IOException e) {
                         throw new UncheckedIOException("Error issuing DELETE against " + uri, e);
                     }
@@ -0,0 +1,152 @@
+package com.flightstats.http;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.escape.Escaper;
+import com.google.common.net.UrlEscapers;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precompiled request: a fixed base URI, a path (and optional query) with {@code {variable}} placeholders, and
+ * default headers. The template is parsed once, up front, so expanding it is just concatenation of the literal
+ * pieces with the escaped variable values.
+ * <p>
+ * <code>
+ * RequestTemplate status = new RequestTemplate("http://flights.example.com", "/v1/flights/{id}/status?date={date}");
+ * httpTemplate.get(status, "AA100", "2017-12-01");
+ * </code>
+ * <p>
+ * Instances are immutable and safe to share between threads.
+ */
+public class RequestTemplate {
+    private static final Escaper PATH_ESCAPER = UrlEscapers.urlPathSegmentEscaper();
+    private static final Escaper QUERY_ESCAPER = UrlEscapers.urlFormParameterEscaper();
+
+    private final String[] literals;
+    private final String[] variableNames;
+    private final boolean[] inQuery;
+    private final int literalLength;
+    private final Map<String, String> defaultHeaders;
+
+    public RequestTemplate(String baseUri, String pathTemplate) {
+        this(baseUri, pathTemplate, Collections.emptyMap());
+    }
+
+    public RequestTemplate(String baseUri, String pathTemplate, Map<String, String> defaultHeaders) {
+        URI base = URI.create(baseUri);
+        if (base.getScheme() == null || base.getRawAuthority() == null) {
+            throw new IllegalArgumentException("Base URI must be absolute: " + baseUri);
+        }
+        String prefix = stripTrailingSlash(base.getScheme() + "://" + base.getRawAuthority() + nullToEmpty(base.getRawPath()));
+        String template = pathTemplate.isEmpty() || pathTemplate.startsWith("/") || pathTemplate.startsWith("?") ? pathTemplate : "/" + pathTemplate;
+
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Boolean> queryFlags = new ArrayList<>();
+        StringBuilder literal = new StringBuilder(prefix);
+        int queryStart = template.indexOf('?');
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c == '{') {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated variable in template: " + pathTemplate);
+                }
+                literals.add(literal.toString());
+                literal.setLength(0);
+                names.add(template.substring(i + 1, end));
+                queryFlags.add(queryStart >= 0 && i > queryStart);
+                i = end + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        literals.add(literal.toString());
+
+        this.literals = literals.toArray(new String[0]);
+        this.variableNames = names.toArray(new String[0]);
+        this.inQuery = new boolean[queryFlags.size()];
+        for (int v = 0; v < inQuery.length; v++) {
+            inQuery[v] = queryFlags.get(v);
+        }
+        this.literalLength = literals.stream().mapToInt(String::length).sum();
+        this.defaultHeaders = ImmutableMap.copyOf(defaultHeaders);
+        // fail fast on a template that can never produce a valid URI.
+        URI.create(expandToString(names.stream().map(n -> "x").toArray()));
+    }
+
+    /**
+     * Expand the template, filling the variables in the order they appear in the template.
+     */
+    public URI expand(Object... variables) {
+        if (variables.length != variableNames.length) {
+            throw new IllegalArgumentException("Template expects " + variableNames.length + " variables, got " + variables.length);
+        }
+        return URI.create(expandToString(variables));
+    }
+
+    /**
+     * Expand the template, filling the variables by name.
+     */
+    public URI expand(Map<String, ?> variables) {
+        Object[] values = new Object[variableNames.length];
+        for (int v = 0; v < variableNames.length; v++) {
+            if (!variables.containsKey(variableNames[v])) {
+                throw new IllegalArgumentException("Missing template variable: " + variableNames[v]);
+            }
+            values[v] = variables.get(variableNames[v]);
+        }
+        return URI.create(expandToString(values));
+    }
+
+    public Map<String, String> getDefaultHeaders() {
+        return defaultHeaders;
+    }
+
+    /**
+     * The default headers, overridden by the provided ones.
+     */
+    public Map<String, String> headers(Map<String, String> extraHeaders) {
+        if (extraHeaders.isEmpty()) {
+            return defaultHeaders;
+        }
+        Map<String, String> merged = new HashMap<>(defaultHeaders);
+        merged.putAll(extraHeaders);
+        return merged;
+    }
+
+    private String expandToString(Object[] values) {
+        StringBuilder result = new StringBuilder(literalLength + 16 * values.length);
+        result.append(literals[0]);
+        for (int v = 0; v < values.length; v++) {
+            String value = String.valueOf(values[v]);
+            result.append(inQuery[v] ? QUERY_ESCAPER.escape(value) : PATH_ESCAPER.escape(value));
+            result.append(literals[v + 1]);
+        }
+        return result.toString();
+    }
+
+    private static String stripTrailingSlash(String s) {
+        return s.endsWith("/") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null ? "" : s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(literals[0]);
+        for (int v = 0; v < variableNames.length; v++) {
+            result.append('{').append(variableNames[v]).append('}').append(literals[v + 1]);
+        }
+        return "RequestTemplate{" + result + ", headers=" + defaultHeaders + '}';
+    }
+}
@@ -0,0 +1,138 @@
+package com.flightstats.filesystem;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BoundedAsyncFileSystemTest {
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        //GIVEN
+        FileSystem fileSystem = mock(FileSystem.class);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch release = new CountDownLatch(1);
+        when(fileSystem.exists(any(Path.class))).thenAnswer(invocation -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            running.decrementAndGet();
+            return true;
+        });
+        ExecutorService executor = Executors.newCachedThreadPool();
+        BoundedAsyncFileSystem async = new BoundedAsyncFileSystem(fileSystem, executor, 3);
+
+        //WHEN
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(async.exists(Paths.get("file" + i)));
+        }
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertEquals(47, async.getQueuedCount());
+        release.countDown();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+
+        //THEN
+        assertEquals(3, maxRunning.get());
+        assertTrue(futures.stream().allMatch(CompletableFuture::join));
+        assertEquals(0, async.getQueuedCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailuresCompleteExceptionally() throws Exception {
+        //GIVEN
+        FileSystem fileSystem = mock(FileSystem.class);
+        when(fileSystem.readContents(Paths.get("missing"))).thenThrow(new UncheckedIOException(new FileNotFoundException("missing")));
+        BoundedAsyncFileSystem async = new BoundedAsyncFileSystem(fileSystem, 2);
+
+        //WHEN
+        try {
+            async.readContents(Paths.get("missing")).get(10, TimeUnit.SECONDS);
+            fail("expected the read to fail");
+        } catch (ExecutionException e) {
+            //THEN
+            assertTrue(e.getCause() instanceof UncheckedIOException);
+        }
+    }
+
+    @Test
+    public void testCallbacksDoNotHoldTheSlot() throws Exception {
+        //GIVEN
+        FileSystem fileSystem = mock(FileSystem.class);
+        CountDownLatch release = new CountDownLatch(1);
+        when(fileSystem.exists(Paths.get("first"))).thenAnswer(invocation -> release.await(10, TimeUnit.SECONDS));
+        when(fileSystem.exists(Paths.get("second"))).thenReturn(true);
+        BoundedAsyncFileSystem async = new BoundedAsyncFileSystem(fileSystem, 1);
+
+        //WHEN
+        CompletableFuture<Boolean> chained = async.exists(Paths.get("first"))
+                .thenApply(first -> async.exists(Paths.get("second")).join());
+        release.countDown();
+
+        //THEN
+        assertTrue(chained.get(10, TimeUnit.SECONDS));
+        async.close();
+    }
+
+    @Test
+    public void testRejectedCallsFail() throws Exception {
+        //GIVEN
+        FileSystem fileSystem = mock(FileSystem.class);
+        BoundedAsyncFileSystem async = new BoundedAsyncFileSystem(fileSystem, command -> {
+            throw new RejectedExecutionException("saturated");
+        }, 2);
+
+        //WHEN
+        CompletableFuture<Boolean> exists = async.exists(Paths.get("file"));
+
+        //THEN
+        try {
+            exists.get(10, TimeUnit.SECONDS);
+            fail("expected the call to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        verify(fileSystem, never()).exists(any(Path.class));
+        assertEquals(0, async.getRunningCount());
+    }
+
+    @Test
+    public void testCloseFailsLaterCalls() throws Exception {
+        //GIVEN
+        FileSystem fileSystem = mock(FileSystem.class);
+        BoundedAsyncFileSystem async = new BoundedAsyncFileSystem(fileSystem, 2);
+
+        //WHEN
+        async.close();
+        CompletableFuture<Boolean> exists = async.exists(Paths.get("file"));
+
+        //THEN
+        assertTrue(exists.isCompletedExceptionally());
+        verify(fileSystem, never()).exists(any(Path.class));
+    }
+}
@@ -0,0 +1,171 @@
+package com.flightstats.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class CachingFileSystemTest {
+    private final Path path = Paths.get("bucket/key.txt");
+    private FileSystem delegate;
+    private Path cacheDirectory;
+    private AtomicReference<String> statVersion;
+    private AtomicReference<String> readVersion;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        delegate = mock(FileSystem.class);
+        cacheDirectory = Files.createTempDirectory("cache");
+        statVersion = new AtomicReference<>("v1");
+        readVersion = new AtomicReference<>("v1");
+        when(delegate.stat(path)).thenAnswer(invocation -> Optional.ofNullable(statVersion.get()).map(this::metadata));
+        doAnswer(invocation -> {
+            ((Consumer<FileMetadata>) invocation.getArguments()[1]).accept(metadata(readVersion.get()));
+            return new ByteArrayInputStream("contents".getBytes(UTF_8));
+        }).when(delegate).inputStream(eq(path), any(Consumer.class));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.list(cacheDirectory).forEach(file -> file.toFile().delete());
+        Files.delete(cacheDirectory);
+    }
+
+    @Test
+    public void testRepeatReadsHitDisk() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+
+        //WHEN
+        String first = fileSystem.readContents(path);
+        String second = fileSystem.readContents(path);
+
+        //THEN
+        assertEquals("contents", first);
+        assertEquals("contents", second);
+        verify(delegate, times(1)).inputStream(eq(path), any(Consumer.class));
+        assertEquals(1, fileSystem.getDiskCacheStats().hitCount());
+        assertEquals(1, Files.list(cacheDirectory).count());
+    }
+
+    @Test
+    public void testChangedVersionIsRefetched() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+
+        //WHEN
+        fileSystem.readContents(path);
+        statVersion.set("v2");
+        readVersion.set("v2");
+        fileSystem.readContents(path);
+
+        //THEN
+        verify(delegate, times(2)).inputStream(eq(path), any(Consumer.class));
+    }
+
+    @Test
+    public void testChangeDuringDownloadIsCachedUnderTheVersionRead() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+        readVersion.set("v2");
+
+        //WHEN
+        fileSystem.readContents(path);
+        fileSystem.readContents(path);
+        statVersion.set("v2");
+        fileSystem.readContents(path);
+
+        //THEN
+        verify(delegate, times(2)).inputStream(eq(path), any(Consumer.class));
+        assertEquals(1, fileSystem.getDiskCacheStats().hitCount());
+    }
+
+    @Test
+    public void testSmallObjectsStayInMemory() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024, 1024, 100);
+
+        //WHEN
+        fileSystem.readContents(path);
+        fileSystem.readContents(path);
+
+        //THEN
+        verify(delegate, times(1)).inputStream(eq(path), any(Consumer.class));
+        assertEquals(1, fileSystem.getMemoryCacheStats().hitCount());
+        assertEquals(0, Files.list(cacheDirectory).count());
+    }
+
+    @Test
+    public void testSaveInvalidates() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+        fileSystem.readContents(path);
+
+        //WHEN
+        fileSystem.saveContent("new", path);
+        fileSystem.readContents(path);
+
+        //THEN
+        verify(delegate).saveContent("new".getBytes(UTF_8), path, null);
+        verify(delegate, times(2)).inputStream(eq(path), any(Consumer.class));
+        assertEquals(1, Files.list(cacheDirectory).count());
+    }
+
+    @Test
+    public void testMoveOnlyInvalidatesTheMovedFile() throws Exception {
+        //GIVEN
+        CachingFileSystem fileSystem = new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+        fileSystem.readContents(path);
+
+        //WHEN
+        fileSystem.move(Paths.get("elsewhere/other.txt"), Paths.get("bucket"));
+        fileSystem.readContents(path);
+
+        //THEN
+        verify(delegate, times(1)).inputStream(eq(path), any(Consumer.class));
+    }
+
+    @Test
+    public void testLeftoversFromEarlierRunAreDeleted() throws Exception {
+        //GIVEN
+        Path leftover = Files.write(cacheDirectory.resolve("0f8fad5b-d9cb-469f-a165-70867728950e"), new byte[100]);
+        Path partial = Files.write(cacheDirectory.resolve("7c9e6679-7425-40de-944b-e07fc1f90ae7.partial"), new byte[100]);
+        Path unrelated = Files.write(cacheDirectory.resolve("notes.txt"), new byte[1]);
+
+        //WHEN
+        new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024);
+
+        //THEN
+        assertFalse(Files.exists(leftover));
+        assertFalse(Files.exists(partial));
+        assertTrue(Files.exists(unrelated));
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testMissingFile() throws Exception {
+        statVersion.set(null);
+        new CachingFileSystem(delegate, cacheDirectory, 1024 * 1024).inputStream(path);
+    }
+
+    private FileMetadata metadata(String eTag) {
+        return new FileMetadata(path, 8, Instant.EPOCH, eTag, null);
+    }
+}
@@ -0,0 +1,161 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.ByteStreams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressingFileSystemTest {
+    private Path tempdir;
+    private CompressingFileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        tempdir = Files.createTempDirectory("test");
+        fileSystem = new CompressingFileSystem(new LocalFileSystem(), 4, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.close();
+        Files.list(tempdir).forEach(file -> file.toFile().delete());
+        Files.delete(tempdir);
+    }
+
+    @Test
+    public void testParallelMembersReadBackAsOneFile() throws Exception {
+        //GIVEN
+        byte[] content = text(1024 * 1024);
+        Path file = tempdir.resolve("data.csv.gz");
+
+        //WHEN
+        try (OutputStream out = fileSystem.outputStream(file)) {
+            for (int i = 0; i < content.length; i += 1000) {
+                out.write(content, i, Math.min(1000, content.length - i));
+            }
+        }
+
+        //THEN
+        assertTrue(Files.size(file) < content.length / 4);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            assertArrayEquals(content, ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = fileSystem.inputStream(file)) {
+            assertArrayEquals(content, ByteStreams.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testSaveContent() throws Exception {
+        //GIVEN
+        Path compressed = tempdir.resolve("small.gz");
+        Path plain = tempdir.resolve("small.txt");
+
+        //WHEN
+        fileSystem.saveContent("hello\n", compressed);
+        fileSystem.saveContent("hello\n", plain);
+        fileSystem.saveContent("", tempdir.resolve("empty.gz"));
+
+        //THEN
+        assertEquals("hello\n", fileSystem.readContents(compressed));
+        assertEquals("hello\n", new String(Files.readAllBytes(plain), UTF_8));
+        assertEquals("", fileSystem.readContents(tempdir.resolve("empty.gz")));
+        assertEquals((byte) 0x1f, Files.readAllBytes(compressed)[0]);
+    }
+
+    @Test
+    public void testGzipContentTypeAloneIsStoredAsIs() throws Exception {
+        //GIVEN
+        Path file = tempdir.resolve("typed");
+
+        //WHEN
+        fileSystem.saveContent("hello\n", file, "application/gzip");
+
+        //THEN
+        assertEquals("hello\n", new String(Files.readAllBytes(file), UTF_8));
+        assertEquals("hello\n", fileSystem.readContents(file));
+    }
+
+    @Test
+    public void testFailedBlockAbortsOutput() throws Exception {
+        //GIVEN
+        FailingStream failing = new FailingStream();
+        OutputStream out = new ParallelGzipOutputStream(failing, Runnable::run, 4, 1);
+
+        //WHEN
+        writeAndClose(out);
+
+        //THEN
+        assertTrue(failing.aborted);
+        assertFalse(failing.closed);
+    }
+
+    @Test
+    public void testFailedBlockClosesOutputThatCantAbort() throws Exception {
+        //GIVEN
+        FailingStream failing = new FailingStream();
+        OutputStream out = new ParallelGzipOutputStream(new FilterOutputStream(failing), Runnable::run, 4, 1);
+
+        //WHEN
+        writeAndClose(out);
+
+        //THEN
+        assertTrue(failing.closed);
+    }
+
+    private static void writeAndClose(OutputStream out) {
+        try {
+            out.write(new byte[12]);
+            fail();
+        } catch (IOException expected) {
+        }
+        try {
+            out.close();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static class FailingStream extends OutputStream implements Abortable {
+        private boolean closed;
+        private boolean aborted;
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("disk full");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+
+    private static byte[] text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; text.length() < length; i++) {
+            text.append("row ").append(i).append(",some value,").append(i % 7).append('\n');
+        }
+        return text.substring(0, length).getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,115 @@
+package com.flightstats.filesystem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileSystemSyncTest {
+    private final Path from = Paths.get("from");
+    private final Path to = Paths.get("backup/to");
+    private InMemoryFileSystem source;
+    private InMemoryFileSystem destination;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new InMemoryFileSystem(1024 * 1024);
+        destination = new InMemoryFileSystem(1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            source.saveContent("file " + i, from.resolve("dir" + (i % 3)).resolve("file" + i));
+        }
+        source.saveContent("not part of the sync", Paths.get("fromage"));
+    }
+
+    @Test
+    public void testOnlyChangedFilesAreCopied() throws Exception {
+        //GIVEN
+        FileSystemSync sync = new FileSystemSync(source, destination, FileSystemSync.Comparison.ETAG, true, 4);
+        FileSystemSync.Report first = sync.sync(from, to);
+        source.saveContent("changed", from.resolve("dir1/file1"));
+        source.delete(from.resolve("dir2/file2"));
+
+        //WHEN
+        FileSystemSync.Report second = sync.sync(from, to);
+
+        //THEN
+        assertEquals(20, first.getFilesCopied());
+        assertTrue(first.isComplete());
+        assertEquals(19, second.getFilesCompared());
+        assertEquals(1, second.getFilesCopied());
+        assertEquals(7, second.getBytesCopied());
+        assertEquals(1, second.getFilesDeleted());
+        assertEquals("changed", destination.readContents(to.resolve("dir1/file1")));
+        assertFalse(destination.exists(to.resolve("dir2/file2")));
+        assertEquals(19, destination.listFiles(to).size());
+    }
+
+    @Test
+    public void testChecksumComparisonCatchesSameSizeChanges() throws Exception {
+        //GIVEN
+        new FileSystemSync(source, destination, FileSystemSync.Comparison.SIZE, false, 2).sync(from, to);
+        source.saveContent("FILE 5", from.resolve("dir2/file5"));
+
+        //WHEN
+        FileSystemSync.Report bySize = new FileSystemSync(source, destination, FileSystemSync.Comparison.SIZE, false, 2).sync(from, to);
+        FileSystemSync.Report byChecksum = new FileSystemSync(source, destination, FileSystemSync.Comparison.CHECKSUM, false, 2).sync(from, to);
+
+        //THEN
+        assertEquals(0, bySize.getFilesCopied());
+        assertEquals(1, byChecksum.getFilesCopied());
+        assertEquals("FILE 5", destination.readContents(to.resolve("dir2/file5")));
+    }
+
+    @Test
+    public void testRootSyncCopiesEverythingFromListingsAlone() throws Exception {
+        //GIVEN
+        AtomicInteger stats = new AtomicInteger();
+        FileSystem counting = new ForwardingFileSystem(source) {
+            @Override
+            public Optional<FileMetadata> stat(Path fileName) {
+                stats.incrementAndGet();
+                return super.stat(fileName);
+            }
+        };
+        destination.saveContent("stale", Paths.get("stale"));
+        FileSystemSync sync = new FileSystemSync(counting, destination, FileSystemSync.Comparison.ETAG, true, 4);
+
+        //WHEN
+        FileSystemSync.Report report = sync.sync(Paths.get(""), Paths.get(""));
+
+        //THEN
+        assertEquals(21, report.getFilesCopied());
+        assertEquals(1, report.getFilesDeleted());
+        assertEquals("not part of the sync", destination.readContents(Paths.get("fromage")));
+        assertEquals("file 4", destination.readContents(from.resolve("dir1/file4")));
+        assertFalse(destination.exists(Paths.get("stale")));
+        assertEquals(0, stats.get());
+    }
+
+    @Test
+    public void testEmptySourceDoesNotEmptyTheDestination() throws Exception {
+        //GIVEN
+        new FileSystemSync(source, destination, FileSystemSync.Comparison.SIZE, false, 2).sync(from, to);
+        Path missing = Paths.get("missing");
+
+        //WHEN
+        try {
+            new FileSystemSync(source, destination, FileSystemSync.Comparison.SIZE, true, 2).sync(missing, to);
+            fail("expected the sync to be refused");
+        } catch (IllegalStateException expected) {
+        }
+        FileSystemSync.Report allowed = new FileSystemSync(source, destination, FileSystemSync.Comparison.SIZE, true, true, 2).sync(missing, to);
+
+        //THEN
+        assertEquals(20, allowed.getFilesDeleted());
+        assertEquals(0, destination.listFiles(to).size());
+    }
+}
@@ -0,0 +1,137 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InMemoryFileSystemTest {
+
+    @Test
+    public void testWriteReadAcrossSegments() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(1024, 10);
+        byte[] content = "0123456789abcdefghijklmno".getBytes(UTF_8);
+
+        //WHEN
+        fileSystem.saveContent(content, Paths.get("dir/file"), "text/plain");
+
+        //THEN
+        try (InputStream in = fileSystem.inputStream(Paths.get("dir/file"))) {
+            assertArrayEquals(content, ByteStreams.toByteArray(in));
+        }
+        ByteBuffer range = fileSystem.read(Paths.get("dir/file"), 8, 5);
+        assertEquals("89abc", new String(range.array(), 0, range.limit(), UTF_8));
+        FileMetadata metadata = fileSystem.stat(Paths.get("dir/file")).get();
+        assertEquals(25, metadata.getSize());
+        assertEquals("text/plain", metadata.getContentType());
+        assertEquals(25, fileSystem.getStatistics().getUsedBytes());
+    }
+
+    @Test
+    public void testListingIsSortedPrefixScan() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(1024);
+        for (String key : Arrays.asList("data/b/2", "data/a/1", "database", "other/3")) {
+            fileSystem.saveContent("x", Paths.get(key));
+        }
+
+        //WHEN / THEN
+        assertEquals(Arrays.asList(Paths.get("data/a/1"), Paths.get("data/b/2"), Paths.get("database")), fileSystem.listFiles(Paths.get("data")));
+        assertEquals(Arrays.asList(Paths.get("data/a"), Paths.get("data/b")), fileSystem.listDirectories(Paths.get("data")));
+    }
+
+    @Test
+    public void testMoveDeleteAndReplaceReleaseMemory() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(1024);
+        fileSystem.saveContent("12345", Paths.get("in/file"));
+        fileSystem.saveContent("123", Paths.get("out/file"));
+
+        //WHEN
+        fileSystem.move(Paths.get("in/file"), Paths.get("out"));
+
+        //THEN
+        assertFalse(fileSystem.exists(Paths.get("in/file")));
+        assertEquals("12345", fileSystem.readContents(Paths.get("out/file")));
+        assertEquals(5, fileSystem.getStatistics().getUsedBytes());
+        fileSystem.delete(Paths.get("out/file"));
+        assertEquals(0, fileSystem.getStatistics().getUsedBytes());
+        assertEquals(0, fileSystem.getStatistics().getFileCount());
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(16, 8);
+
+        //WHEN
+        try (OutputStream out = fileSystem.outputStream(Paths.get("big"))) {
+            out.write(new byte[20]);
+            fail("expected the write to exceed the limit");
+        } catch (IOException e) {
+            //THEN
+            assertTrue(e.getMessage().contains("full"));
+        }
+        assertFalse(fileSystem.exists(Paths.get("big")));
+        assertEquals(0, fileSystem.getStatistics().getUsedBytes());
+    }
+
+    @Test
+    public void testUnclosedStreamsHoldNoSpace() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(16, 8);
+        OutputStream abandoned = fileSystem.outputStream(Paths.get("abandoned"));
+        abandoned.write(new byte[12]);
+
+        //WHEN
+        fileSystem.saveContent(new byte[12], Paths.get("saved"), null);
+
+        //THEN
+        assertEquals(12, fileSystem.getStatistics().getUsedBytes());
+        assertFalse(fileSystem.exists(Paths.get("abandoned")));
+        try {
+            abandoned.close();
+            fail("expected the close to exceed the limit");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("full"));
+        }
+        assertFalse(fileSystem.exists(Paths.get("abandoned")));
+        assertEquals(12, fileSystem.getStatistics().getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        //GIVEN
+        InMemoryFileSystem fileSystem = new InMemoryFileSystem(1024 * 1024, 64);
+
+        //WHEN
+        CompletableFuture<?>[] writers = new CompletableFuture[8];
+        for (int i = 0; i < writers.length; i++) {
+            int writer = i;
+            writers[i] = CompletableFuture.runAsync(() -> {
+                for (int j = 0; j < 100; j++) {
+                    fileSystem.saveContent("content " + j, Paths.get("w" + writer + "/" + j));
+                }
+            });
+        }
+        CompletableFuture.allOf(writers).join();
+
+        //THEN
+        assertEquals(800, fileSystem.getStatistics().getFileCount());
+        assertEquals(100, fileSystem.listFiles(Paths.get("w3/")).size());
+    }
+}
@@ -6,11 +6,16 @@ import com.google.common.collect.Ordering;
 import org.junit.Test;
 
 import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 
 public class LocalFileSystemTest {
     @Test
@@ -51,4 +56,136 @@ public class LocalFileSystemTest {
             tempdir.toFile().delete();
         }
     }
+
+    @Test
+    public void testStat() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        Path file = tempdir.resolve("stat.txt");
+        try {
+            Files.write(file, "twelve bytes".getBytes());
+            LocalFileSystem fileSystem = new LocalFileSystem();
+
+            FileMetadata metadata = fileSystem.stat(file).get();
+            assertEquals(12, metadata.getSize());
+            assertEquals(file, metadata.getPath());
+            assertFalse(fileSystem.stat(tempdir.resolve("nope.txt")).isPresent());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(tempdir);
+        }
+    }
+
+    @Test
+    public void testListDirectories() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        try {
+            Files.createDirectories(tempdir.resolve("a/deep/er"));
+            Files.createDirectories(tempdir.resolve("b"));
+            Files.write(tempdir.resolve("file.txt"), new byte[0]);
+
+            List<Path> directories = new LocalFileSystem().listDirectories(tempdir);
+
+            assertEquals("a\nb", Joiner.on("\n").join(Ordering.natural().sortedCopy(Lists.transform(directories, tempdir::relativize))));
+            assertEquals(0, new LocalFileSystem().listDirectories(tempdir.resolve("missing")).size());
+        } finally {
+            Files.delete(tempdir.resolve("file.txt"));
+            Files.delete(tempdir.resolve("a/deep/er"));
+            Files.delete(tempdir.resolve("a/deep"));
+            Files.delete(tempdir.resolve("a"));
+            Files.delete(tempdir.resolve("b"));
+            Files.delete(tempdir);
+        }
+    }
+
+    @Test
+    public void testListFilesParallel_matchesListFiles() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        try {
+            for (String file : Arrays.asList("data1/a/1", "data1/a/b/2", "data2/3", "data3", "other/4")) {
+                Path path = tempdir.resolve(file);
+                Files.createDirectories(path.getParent());
+                Files.write(path, new byte[0]);
+            }
+            LocalFileSystem fileSystem = new LocalFileSystem(4);
+
+            List<Path> parallel = fileSystem.listFilesParallel(tempdir.resolve("data"), true);
+
+            assertEquals(Ordering.natural().sortedCopy(fileSystem.listFiles(tempdir.resolve("data"))), parallel);
+            assertEquals(4, parallel.size());
+        } finally {
+            for (String file : Arrays.asList("data1/a/b/2", "data1/a/1", "data1/a/b", "data1/a", "data1", "data2/3", "data2", "data3", "other/4", "other")) {
+                Files.delete(tempdir.resolve(file));
+            }
+            Files.delete(tempdir);
+        }
+    }
+
+    @Test
+    public void testDeleteAll() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        try {
+            Files.write(tempdir.resolve("a"), new byte[0]);
+            Files.write(tempdir.resolve("b"), new byte[0]);
+
+            BatchResult result = new LocalFileSystem().deleteAll(Arrays.asList(tempdir.resolve("a"), tempdir.resolve("b"), tempdir.resolve("missing")));
+
+            assertEquals(3, result.getSucceeded().size());
+            assertFalse(Files.exists(tempdir.resolve("a")));
+            assertFalse(Files.exists(tempdir.resolve("b")));
+        } finally {
+            Files.deleteIfExists(tempdir.resolve("a"));
+            Files.deleteIfExists(tempdir.resolve("b"));
+            Files.delete(tempdir);
+        }
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        Path file = tempdir.resolve("read.txt");
+        try {
+            Files.write(file, "0123456789".getBytes());
+            LocalFileSystem fileSystem = new LocalFileSystem();
+
+            ByteBuffer middle = fileSystem.read(file, 3, 4);
+            ByteBuffer past = fileSystem.read(file, 8, 4);
+            ByteBuffer end = fileSystem.read(file, 12, 4);
+            ByteBuffer huge = fileSystem.read(file, 0, Integer.MAX_VALUE);
+
+            assertEquals("3456", new String(middle.array(), 0, middle.limit()));
+            assertEquals("89", new String(past.array(), 0, past.limit()));
+            assertEquals(0, end.remaining());
+            assertEquals(10, huge.capacity());
+            try (SeekableByteChannel channel = fileSystem.readChannel(file)) {
+                assertEquals(10, channel.size());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(tempdir);
+        }
+    }
+
+    @Test
+    public void testReadContentsMapAndTransfer() throws Exception {
+        Path tempdir = Files.createTempDirectory("test");
+        Path file = tempdir.resolve("source.txt");
+        Path copy = tempdir.resolve("copies/copy.txt");
+        try {
+            Files.write(file, "line one\r\nline two\n".getBytes());
+            LocalFileSystem fileSystem = new LocalFileSystem();
+
+            assertEquals("line one\r\nline two\n", fileSystem.readContents(file));
+            MappedByteBuffer mapped = fileSystem.mapReadOnly(file);
+            assertEquals(19, mapped.remaining());
+            assertEquals('l', mapped.get(0));
+
+            fileSystem.transferTo(file, fileSystem, copy);
+            assertEquals("line one\r\nline two\n", new String(Files.readAllBytes(copy)));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(copy);
+            Files.deleteIfExists(copy.getParent());
+            Files.delete(tempdir);
+        }
+    }
 }
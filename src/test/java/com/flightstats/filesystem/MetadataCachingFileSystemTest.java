@@ -0,0 +1,150 @@
+package com.flightstats.filesystem;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+public class MetadataCachingFileSystemTest {
+    private final Path present = Paths.get("data/1");
+    private final Path missing = Paths.get("data/2");
+    private FileSystem delegate;
+    private MetadataCachingFileSystem fileSystem;
+
+    @Before
+    public void setUp() throws Exception {
+        delegate = mock(FileSystem.class);
+        when(delegate.stat(present)).thenReturn(Optional.of(new FileMetadata(present, 1, Instant.EPOCH, "etag", null)));
+        when(delegate.stat(missing)).thenReturn(Optional.empty());
+        when(delegate.listFiles(Paths.get("data"))).thenReturn(Arrays.asList(present));
+        fileSystem = new MetadataCachingFileSystem(delegate, Duration.ofMinutes(1), 1000);
+    }
+
+    @Test
+    public void testStatAndExistsAreCached() throws Exception {
+        //WHEN
+        boolean first = fileSystem.exists(present);
+        boolean second = fileSystem.exists(present);
+        Optional<FileMetadata> metadata = fileSystem.stat(present);
+
+        //THEN
+        assertTrue(first);
+        assertTrue(second);
+        assertEquals(1, metadata.get().getSize());
+        verify(delegate, times(1)).stat(present);
+        assertEquals(2, fileSystem.getStatCacheStats().hitCount());
+    }
+
+    @Test
+    public void testMissingFilesAreCached() throws Exception {
+        //WHEN
+        fileSystem.exists(missing);
+        boolean exists = fileSystem.exists(missing);
+
+        //THEN
+        assertFalse(exists);
+        verify(delegate, times(1)).stat(missing);
+    }
+
+    @Test
+    public void testStatAllOnlyFetchesMisses() throws Exception {
+        //GIVEN
+        fileSystem.stat(present);
+        when(delegate.statAll(anyCollection())).thenReturn(ImmutableMap.of());
+
+        //WHEN
+        Map<Path, FileMetadata> result = fileSystem.statAll(Arrays.asList(present, missing));
+        fileSystem.statAll(Arrays.asList(present, missing));
+
+        //THEN
+        assertEquals(1, result.size());
+        verify(delegate, times(1)).statAll(Arrays.asList(missing));
+    }
+
+    @Test
+    public void testSaveIsWrittenThrough() throws Exception {
+        //GIVEN
+        fileSystem.exists(missing);
+        fileSystem.listFiles(Paths.get("data"));
+        when(delegate.stat(missing)).thenReturn(Optional.of(new FileMetadata(missing, 3, Instant.EPOCH, "etag", null)));
+
+        //WHEN
+        fileSystem.saveContent("new", missing);
+
+        //THEN
+        assertEquals(Arrays.asList(present, missing), fileSystem.listFiles(Paths.get("data")));
+        assertTrue(fileSystem.exists(missing));
+        verify(delegate, times(1)).listFiles(Paths.get("data"));
+    }
+
+    @Test
+    public void testSaveKeepsListingsInKeyOrder() throws Exception {
+        //GIVEN
+        Path first = Paths.get("data/0");
+        fileSystem.listFiles(Paths.get("data"));
+
+        //WHEN
+        fileSystem.saveContent("new", missing);
+        fileSystem.saveContent("new", first);
+
+        //THEN
+        assertEquals(Arrays.asList(first, present, missing), fileSystem.listFiles(Paths.get("data")));
+    }
+
+    @Test
+    public void testSavesDoNotExtendListings() throws Exception {
+        //GIVEN
+        fileSystem = new MetadataCachingFileSystem(delegate, Duration.ofMillis(200), 1000);
+        fileSystem.listFiles(Paths.get("data"));
+
+        //WHEN
+        for (int i = 0; i < 6; i++) {
+            fileSystem.saveContent("new", missing);
+            Thread.sleep(50);
+        }
+        fileSystem.listFiles(Paths.get("data"));
+
+        //THEN
+        verify(delegate, times(2)).listFiles(Paths.get("data"));
+    }
+
+    @Test
+    public void testMoveIsWrittenThrough() throws Exception {
+        //GIVEN
+        fileSystem.exists(present);
+        fileSystem.listFiles(Paths.get("data"));
+
+        //WHEN
+        fileSystem.move(present, Paths.get("archive"));
+
+        //THEN
+        assertEquals(0, fileSystem.listFiles(Paths.get("data")).size());
+        assertFalse(fileSystem.exists(present));
+        verify(delegate).move(present, Paths.get("archive"));
+        verify(delegate, times(1)).stat(present);
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        //GIVEN
+        fileSystem = new MetadataCachingFileSystem(delegate, Duration.ZERO, 1000);
+
+        //WHEN
+        fileSystem.listFiles(Paths.get("data"));
+        fileSystem.listFiles(Paths.get("data"));
+
+        //THEN
+        verify(delegate, times(2)).listFiles(Paths.get("data"));
+    }
+}
@@ -0,0 +1,206 @@
+package com.flightstats.filesystem;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackedFileSystemTest {
+    private final Path root = Paths.get("packed");
+    private InMemoryFileSystem store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = new InMemoryFileSystem(16 * 1024 * 1024);
+    }
+
+    @Test
+    public void testSmallFilesArePackedIntoSegments() throws Exception {
+        //GIVEN
+        PackedFileSystem fileSystem = new PackedFileSystem(store, root, 64 * 1024);
+
+        //WHEN
+        for (int i = 0; i < 1000; i++) {
+            fileSystem.saveContent("content of file " + i, Paths.get("data/" + (i % 10) + "/file" + i));
+        }
+        fileSystem.flush();
+
+        //THEN
+        int segments = store.listFiles(root.resolve("segments")).size();
+        assertTrue(segments >= 1 && segments <= 2);
+        assertEquals(segments, store.listFiles(root.resolve("index")).size());
+        assertEquals("content of file 123", fileSystem.readContents(Paths.get("data/3/file123")));
+        assertEquals(100, fileSystem.listFiles(Paths.get("data/7")).size());
+        assertEquals(10, fileSystem.listDirectories(Paths.get("data")).size());
+        assertEquals(19, fileSystem.stat(Paths.get("data/3/file123")).get().getSize());
+
+        ByteBuffer range = fileSystem.read(Paths.get("data/3/file123"), 11, 100);
+        assertEquals("file 123", UTF_8.decode(range).toString());
+    }
+
+    @Test
+    public void testUnflushedFilesAreReadable() throws Exception {
+        //GIVEN
+        PackedFileSystem fileSystem = new PackedFileSystem(store, root, 64 * 1024);
+
+        //WHEN
+        fileSystem.saveContent("pending", Paths.get("a/file"));
+
+        //THEN
+        assertEquals("pending", fileSystem.readContents(Paths.get("a/file")));
+        assertTrue(fileSystem.exists(Paths.get("a/file")));
+        assertEquals(Collections.emptyList(), store.listFiles(root));
+    }
+
+    @Test
+    public void testIndexIsReloadedWithMovesAndDeletes() throws Exception {
+        //GIVEN
+        PackedFileSystem fileSystem = new PackedFileSystem(store, root, 64 * 1024);
+        fileSystem.saveContent("one", Paths.get("in/one"));
+        fileSystem.saveContent("two", Paths.get("in/two"));
+        fileSystem.saveContent("three", Paths.get("in/three"));
+        fileSystem.flush();
+
+        //WHEN
+        fileSystem.move(Paths.get("in/one"), Paths.get("out"));
+        fileSystem.delete(Paths.get("in/two"));
+        fileSystem.close();
+        PackedFileSystem reopened = new PackedFileSystem(store, root, 64 * 1024);
+
+        //THEN
+        assertEquals(Arrays.asList(Paths.get("in/three"), Paths.get("out/one")), reopened.listFiles(Paths.get("")));
+        assertEquals("one", reopened.readContents(Paths.get("out/one")));
+        assertFalse(reopened.exists(Paths.get("in/two")));
+    }
+
+    @Test
+    public void testLargeFilesPassThrough() throws Exception {
+        //GIVEN
+        PackedFileSystem fileSystem = new PackedFileSystem(store, root, 64 * 1024, 1024, Duration.ofMinutes(1));
+        byte[] large = new byte[5000];
+        Arrays.fill(large, (byte) 'x');
+
+        //WHEN
+        try (OutputStream out = fileSystem.outputStream(Paths.get("big/streamed"))) {
+            for (int i = 0; i < large.length; i += 100) {
+                out.write(large, i, 100);
+            }
+        }
+        fileSystem.saveContent(large, Paths.get("big/saved"), null);
+        fileSystem.saveContent("small", Paths.get("small"));
+
+        //THEN
+        assertEquals(2, store.listFiles(root.resolve("segments")).size());
+        assertEquals(5000, fileSystem.stat(Paths.get("big/streamed")).get().getSize());
+        try (InputStream in = fileSystem.inputStream(Paths.get("big/streamed"))) {
+            assertArrayEquals(large, ByteStreams.toByteArray(in));
+        }
+        assertEquals(100, fileSystem.read(Paths.get("big/saved"), 4900, 1000).remaining());
+        assertEquals("small", fileSystem.readContents(Paths.get("small")));
+
+        fileSystem.close();
+        PackedFileSystem reopened = new PackedFileSystem(store, root, 64 * 1024, 1024, Duration.ofMinutes(1));
+        assertEquals(5000, reopened.readContents(Paths.get("big/saved")).length());
+    }
+
+    @Test
+    public void testOldSegmentsAreFlushed() throws Exception {
+        //GIVEN
+        PackedFileSystem fileSystem = new PackedFileSystem(store, root, 64 * 1024, 1024, Duration.ofMillis(50));
+
+        //WHEN
+        fileSystem.saveContent("waiting", Paths.get("a/file"));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (store.listFiles(root.resolve("index")).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        //THEN
+        assertEquals(1, store.listFiles(root.resolve("index")).size());
+        fileSystem.close();
+    }
+
+    @Test
+    public void testFailedFlushDoesNotFailTheWriter() throws Exception {
+        //GIVEN
+        AtomicBoolean storeDown = new AtomicBoolean(true);
+        FileSystem flaky = new ForwardingFileSystem(store) {
+            @Override
+            public void saveContent(byte[] content, Path fileName, String contentType) {
+                if (storeDown.get()) {
+                    throw new UncheckedIOException(new IOException("store down"));
+                }
+                super.saveContent(content, fileName, contentType);
+            }
+        };
+        PackedFileSystem fileSystem = new PackedFileSystem(flaky, root, 16, 8, Duration.ofMinutes(1));
+
+        //WHEN
+        fileSystem.saveContent("0123456", Paths.get("one"));
+        fileSystem.saveContent("7890123", Paths.get("two"));
+        fileSystem.saveContent("4567890", Paths.get("three"));
+        storeDown.set(false);
+        fileSystem.flush();
+
+        //THEN
+        assertEquals("7890123", fileSystem.readContents(Paths.get("two")));
+        PackedFileSystem reopened = new PackedFileSystem(store, root, 16, 8, Duration.ofMinutes(1));
+        assertEquals(Arrays.asList(Paths.get("one"), Paths.get("three"), Paths.get("two")), reopened.listFiles(Paths.get("")));
+        fileSystem.close();
+        reopened.close();
+    }
+
+    @Test
+    public void testFirstPackedFileIsReadWithARangedRead() throws Exception {
+        //GIVEN
+        AtomicLong served = new AtomicLong();
+        FileSystem counting = new ForwardingFileSystem(store) {
+            //an unranged GET: the whole object is sent, however little of it is read.
+            @Override
+            public InputStream inputStream(Path fileName) {
+                served.addAndGet(super.stat(fileName).get().getSize());
+                return super.inputStream(fileName);
+            }
+
+            @Override
+            public ByteBuffer read(Path fileName, long offset, int length) {
+                ByteBuffer buffer = super.read(fileName, offset, length);
+                served.addAndGet(buffer.remaining());
+                return buffer;
+            }
+        };
+        PackedFileSystem fileSystem = new PackedFileSystem(counting, root, 64 * 1024);
+        fileSystem.saveContent("first", Paths.get("first"));
+        fileSystem.saveContent(new byte[8000], Paths.get("second"), null);
+        fileSystem.flush();
+
+        //WHEN
+        byte[] first;
+        try (InputStream in = fileSystem.inputStream(Paths.get("first"))) {
+            first = ByteStreams.toByteArray(in);
+        }
+
+        //THEN
+        assertEquals("first", new String(first, UTF_8));
+        assertEquals(5, served.get());
+        fileSystem.close();
+    }
+}
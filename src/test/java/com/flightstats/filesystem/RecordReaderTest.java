@@ -0,0 +1,97 @@
+package com.flightstats.filesystem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RecordReaderTest {
+
+    @Test
+    public void testDelimitedRecords() throws Exception {
+        //GIVEN
+        byte[] content = "one|two||three".getBytes(UTF_8);
+
+        //WHEN
+        List<String> records;
+        try (Stream<byte[]> stream = new RecordReader(new ByteArrayInputStream(content), RecordFormat.delimitedBy((byte) '|')).stream()) {
+            records = stream.map(record -> new String(record, UTF_8)).collect(toList());
+        }
+
+        //THEN
+        assertEquals(Arrays.asList("one", "two", "", "three"), records);
+    }
+
+    @Test
+    public void testRecordsLargerThanTheBuffer() throws Exception {
+        //GIVEN
+        byte[] big = new byte[600 * 1024];
+        Arrays.fill(big, (byte) 'x');
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(3);
+        out.write("abc".getBytes(UTF_8));
+        out.writeInt(big.length);
+        out.write(big);
+        out.writeInt(0);
+
+        //WHEN
+        List<byte[]> records = new RecordReader(new ByteArrayInputStream(bytes.toByteArray()), RecordFormat.LENGTH_PREFIXED).stream().collect(toList());
+
+        //THEN
+        assertEquals(3, records.size());
+        assertEquals("abc", new String(records.get(0), UTF_8));
+        assertTrue(Arrays.equals(big, records.get(1)));
+        assertEquals(0, records.get(2).length);
+    }
+
+    @Test
+    public void testTruncatedLengthPrefixedRecord() throws Exception {
+        //GIVEN
+        byte[] content = {0, 0, 0, 5, 'a', 'b'};
+
+        //WHEN
+        try {
+            new RecordReader(new ByteArrayInputStream(content), RecordFormat.LENGTH_PREFIXED).stream().count();
+            fail("expected the truncated record to fail");
+        } catch (UncheckedIOException e) {
+            //THEN
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+    }
+
+    @Test
+    public void testClosingTheStreamClosesTheInput() throws Exception {
+        //GIVEN
+        AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayInputStream in = new ByteArrayInputStream("a\nb\nc".getBytes(UTF_8)) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+
+        //WHEN
+        String first;
+        try (Stream<String> lines = RecordReader.lines(in, UTF_8)) {
+            first = lines.findFirst().get();
+        }
+
+        //THEN
+        assertEquals("a", first);
+        assertTrue(closed.get());
+    }
+}
@@ -0,0 +1,694 @@
+package com.flightstats.filesystem;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class S3FileSystemTest {
+
+    @Test
+    public void testStreamingInputStream_resumesFromOffsetAfterReset() throws Exception {
+        //GIVEN
+        byte[] content = "0123456789abcdefghij".getBytes();
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObject("bucket", "some/key")).thenReturn(s3Object(content, failingAfter(content, 7), "etag"));
+
+        AtomicReference<GetObjectRequest> seenRequest = new AtomicReference<>();
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            GetObjectRequest request = (GetObjectRequest) invocation.getArguments()[0];
+            seenRequest.set(request);
+            byte[] rest = Arrays.copyOfRange(content, (int) request.getRange()[0], content.length);
+            return s3Object(content, new ByteArrayInputStream(rest), "etag");
+        });
+
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withStreamingReads(true));
+
+        //WHEN
+        byte[] result;
+        try (InputStream in = fileSystem.inputStream(Paths.get("some/key"))) {
+            result = ByteStreams.toByteArray(in);
+        }
+
+        //THEN
+        assertArrayEquals(content, result);
+        assertEquals(7L, seenRequest.get().getRange()[0]);
+        assertEquals("etag", seenRequest.get().getMatchingETagConstraints().get(0));
+    }
+
+    @Test
+    public void testParallelInputStream_reassemblesPartsInOrder() throws Exception {
+        //GIVEN
+        byte[] content = "the quick brown fox jumps over the lazy dog".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        S3Settings settings = S3Settings.DEFAULTS.withDownloadPartSize(5).withDownloadParallelism(3).withMaxBufferedParts(4);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", settings);
+
+        //WHEN
+        byte[] result;
+        try (InputStream in = fileSystem.parallelInputStream(Paths.get("big/object"))) {
+            result = ByteStreams.toByteArray(in);
+        }
+
+        //THEN
+        assertArrayEquals(content, result);
+    }
+
+    @Test
+    public void testParallelInputStream_readsEveryPartWithOneThread() throws Exception {
+        //GIVEN
+        byte[] content = "the quick brown fox jumps over the lazy dog".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        S3Settings settings = S3Settings.DEFAULTS.withDownloadPartSize(3).withDownloadParallelism(1).withMaxBufferedParts(1);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", settings);
+
+        //WHEN
+        //repeated, since the reader only sometimes wakes before the finished part frees its slot.
+        for (int i = 0; i < 500; i++) {
+            byte[] result;
+            try (InputStream in = fileSystem.parallelInputStream(Paths.get("big/object"))) {
+                result = ByteStreams.toByteArray(in);
+            }
+
+            //THEN
+            assertArrayEquals(content, result);
+        }
+    }
+
+    @Test
+    public void testDownload_writesPartsAtTheirOffsets() throws Exception {
+        //GIVEN
+        byte[] content = "the quick brown fox jumps over the lazy dog".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withDownloadPartSize(4).withDownloadParallelism(4));
+        Path target = Files.createTempFile("download", ".bin");
+
+        try {
+            //WHEN
+            fileSystem.download(Paths.get("big/object"), target);
+
+            //THEN
+            assertArrayEquals(content, Files.readAllBytes(target));
+        } finally {
+            Files.delete(target);
+        }
+    }
+
+    @Test
+    public void testDownload_retriesServerErrors() throws Exception {
+        //GIVEN
+        byte[] content = "the quick brown fox jumps over the lazy dog".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        AmazonS3Exception unavailable = new AmazonS3Exception("slow down");
+        unavailable.setStatusCode(503);
+        AtomicInteger attempts = new AtomicInteger();
+        doAnswer(invocation -> {
+            long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+            if (range[0] == 8 && attempts.getAndIncrement() == 0) {
+                throw unavailable;
+            }
+            int end = (int) Math.min(range[1] + 1, content.length);
+            return s3Object(content, new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], end)), "etag");
+        }).when(s3).getObject(any(GetObjectRequest.class));
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withDownloadPartSize(4).withDownloadParallelism(4));
+        Path target = Files.createTempFile("download", ".bin");
+
+        try {
+            //WHEN
+            fileSystem.download(Paths.get("big/object"), target);
+
+            //THEN
+            assertArrayEquals(content, Files.readAllBytes(target));
+            assertEquals(2, attempts.get());
+        } finally {
+            Files.delete(target);
+        }
+    }
+
+    @Test
+    public void testOutputStream_partsCompletedInPartOrder() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = multipartS3(-1);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withMaxPartsInFlight(3));
+
+        //WHEN
+        try (OutputStream out = fileSystem.outputStream(Paths.get("some/key"))) {
+            out.write(new byte[12 * 1024 * 1024]);
+        }
+
+        //THEN
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3).completeMultipartUpload(complete.capture());
+        List<PartETag> partETags = complete.getValue().getPartETags();
+        assertEquals(3, partETags.size());
+        for (int i = 0; i < partETags.size(); i++) {
+            assertEquals(i + 1, partETags.get(i).getPartNumber());
+            assertEquals("etag-" + (i + 1), partETags.get(i).getETag());
+        }
+    }
+
+    @Test
+    public void testOutputStream_failedPartAbortsUpload() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = multipartS3(2);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        OutputStream out = fileSystem.outputStream(Paths.get("some/key"));
+        try {
+            out.write(new byte[12 * 1024 * 1024]);
+            out.close();
+            fail("expected the failed part to surface");
+        } catch (IOException expected) {
+            //THEN
+            verify(s3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+            verify(s3, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+        }
+    }
+
+    @Test
+    public void testOutputStream_smallObjectUsesSinglePut() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = multipartS3(-1);
+        AtomicReference<byte[]> uploaded = new AtomicReference<>();
+        when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            uploaded.set(ByteStreams.toByteArray(((PutObjectRequest) invocation.getArguments()[0]).getInputStream()));
+            return new PutObjectResult();
+        });
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        try (OutputStream out = fileSystem.outputStream(Paths.get("small/key"), "text/plain")) {
+            out.write("hello ".getBytes());
+            out.write('s');
+            out.write("3".getBytes());
+        }
+
+        //THEN
+        assertArrayEquals("hello s3".getBytes(), uploaded.get());
+        verify(s3, never()).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    }
+
+    @Test
+    public void testSaveContent_skipsUnchangedContent() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectMetadata existing = new ObjectMetadata();
+        existing.setContentLength(4);
+        existing.addUserMetadata("content-md5", md5Hex("same"));
+        when(s3.getObjectMetadata("bucket", "key")).thenReturn(existing);
+        AtomicReference<PutObjectRequest> put = new AtomicReference<>();
+        when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+            put.set((PutObjectRequest) invocation.getArguments()[0]);
+            return new PutObjectResult();
+        });
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withSkipUnchangedUploads(true));
+
+        //WHEN
+        fileSystem.saveContent("same", Paths.get("key"));
+
+        //THEN
+        verify(s3, never()).putObject(any(PutObjectRequest.class));
+
+        //WHEN
+        fileSystem.saveContent("changed", Paths.get("key"));
+
+        //THEN
+        assertEquals(md5Hex("changed"), put.get().getMetadata().getUserMetaDataOf("content-md5"));
+    }
+
+    @Test
+    public void testExists_usesHeadRequest() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(42);
+        when(s3.getObjectMetadata("bucket", "here")).thenReturn(metadata);
+        AmazonS3Exception notFound = new AmazonS3Exception("not found");
+        notFound.setStatusCode(404);
+        when(s3.getObjectMetadata("bucket", "gone")).thenThrow(notFound);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN/THEN
+        assertTrue(fileSystem.exists(Paths.get("here")));
+        assertFalse(fileSystem.exists(Paths.get("gone")));
+        verify(s3, never()).getObject(anyString(), anyString());
+    }
+
+    @Test
+    public void testStatAll_returnsOnlyExistingFiles() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.getObjectMetadata(anyString(), anyString())).thenAnswer(invocation -> {
+            String key = (String) invocation.getArguments()[1];
+            if (key.startsWith("missing")) {
+                AmazonS3Exception notFound = new AmazonS3Exception("not found");
+                notFound.setStatusCode(404);
+                throw notFound;
+            }
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(key.length());
+            return metadata;
+        });
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withBulkParallelism(2));
+        List<Path> paths = Arrays.asList(Paths.get("a"), Paths.get("missing1"), Paths.get("bbb"), Paths.get("missing2"));
+
+        //WHEN
+        Map<Path, FileMetadata> result = fileSystem.statAll(paths);
+
+        //THEN
+        assertEquals(2, result.size());
+        assertEquals(1, result.get(Paths.get("a")).getSize());
+        assertEquals(3, result.get(Paths.get("bbb")).getSize());
+    }
+
+    @Test
+    public void testStreamFiles_fetchesPagesLazily() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectListing page1 = listing(true, "data/1", "data/2");
+        ObjectListing page2 = listing(true, "data/3");
+        ObjectListing page3 = listing(false, "data/4");
+        when(s3.listObjects(any(ListObjectsRequest.class))).thenReturn(page1);
+        when(s3.listNextBatchOfObjects(page1)).thenReturn(page2);
+        when(s3.listNextBatchOfObjects(page2)).thenReturn(page3);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        List<Path> firstTwo;
+        try (Stream<Path> files = fileSystem.streamFiles(Paths.get("data"))) {
+            firstTwo = files.limit(2).collect(toList());
+        }
+
+        //THEN
+        assertEquals(Arrays.asList(Paths.get("data/1"), Paths.get("data/2")), firstTwo);
+        verify(s3, never()).listNextBatchOfObjects(page2);
+        assertEquals(4, fileSystem.listFiles(Paths.get("data")).size());
+    }
+
+    @Test
+    public void testListDirectories_usesDelimiter() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectListing listing = listing(false, "data/file");
+        listing.setCommonPrefixes(Arrays.asList("data/2017/", "data/2018/"));
+        ArgumentCaptor<ListObjectsRequest> request = ArgumentCaptor.forClass(ListObjectsRequest.class);
+        when(s3.listObjects(request.capture())).thenReturn(listing);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        List<Path> directories = fileSystem.listDirectories(Paths.get("data"));
+
+        //THEN
+        assertEquals(Arrays.asList(Paths.get("data/2017"), Paths.get("data/2018")), directories);
+        assertEquals("data/", request.getValue().getPrefix());
+        assertEquals("/", request.getValue().getDelimiter());
+    }
+
+    @Test
+    public void testListFilesParallel_walksCommonPrefixes() throws Exception {
+        //GIVEN
+        List<String> keys = Arrays.asList("data/a/1", "data/a/2", "data/b/1", "data/b/c/d/1", "data/top", "data2/other");
+        List<ListObjectsRequest> requests = new CopyOnWriteArrayList<>();
+        AmazonS3 s3 = bucketS3(keys, 1000, requests);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        List<Path> files = fileSystem.listFilesParallel(Paths.get("data/"), true);
+
+        //THEN
+        assertEquals(keys.stream().map(Paths::get).collect(toList()), files);
+        List<String> prefixes = requests.stream().map(ListObjectsRequest::getPrefix).sorted().collect(toList());
+        assertEquals(Arrays.asList("data", "data/", "data/a/", "data/b/", "data/b/c/", "data/b/c/d/", "data2/"), prefixes);
+    }
+
+    @Test
+    public void testListFilesParallel_flatKeysShardByRange() throws Exception {
+        //GIVEN
+        List<String> keys = new ArrayList<>(Arrays.asList("k-0", "k0", "k00", "k5", "kA", "kZz", "ka", "kz", "kzz", "k~"));
+        for (int i = 0; i < 200; i++) {
+            keys.add(String.format("kb%03d", i));
+        }
+        keys.sort(null);
+        AmazonS3 s3 = bucketS3(keys, 7, new CopyOnWriteArrayList<>());
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withBulkParallelism(4));
+
+        //WHEN
+        List<Path> files = fileSystem.listFilesParallel(Paths.get("k"), true);
+
+        //THEN
+        assertEquals(keys, files.stream().map(Path::toString).collect(toList()));
+    }
+
+    @Test
+    public void testStreamFileMetadata_comesFromTheListing() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = bucketS3(Arrays.asList("data/a", "data/bb", "other"), 1, new CopyOnWriteArrayList<>());
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        List<FileMetadata> files;
+        try (Stream<FileMetadata> listed = fileSystem.streamFileMetadata(Paths.get("data"))) {
+            files = listed.collect(toList());
+        }
+
+        //THEN
+        assertEquals(Arrays.asList(new FileMetadata(Paths.get("data/a"), 6, Instant.ofEpochSecond(1), "etag-data/a", null),
+                new FileMetadata(Paths.get("data/bb"), 7, Instant.ofEpochSecond(1), "etag-data/bb", null)), files);
+        verify(s3, never()).getObjectMetadata(anyString(), anyString());
+    }
+
+    @Test
+    public void testDeleteAll_batchesKeysAndReportsFailures() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        List<DeleteObjectsRequest> requests = new CopyOnWriteArrayList<>();
+        when(s3.deleteObjects(any(DeleteObjectsRequest.class))).thenAnswer(invocation -> {
+            DeleteObjectsRequest request = (DeleteObjectsRequest) invocation.getArguments()[0];
+            requests.add(request);
+            if (request.getKeys().get(0).getKey().equals("dir/0")) {
+                MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+                error.setKey("dir/5");
+                error.setCode("AccessDenied");
+                throw new MultiObjectDeleteException(Arrays.asList(error), Arrays.asList());
+            }
+            return new DeleteObjectsResult(Arrays.asList());
+        });
+        List<Path> files = IntStream.range(0, 2500).mapToObj(i -> Paths.get("dir/" + i)).collect(toList());
+
+        //WHEN
+        BatchResult result = new S3FileSystem(s3, "bucket").deleteAll(files);
+
+        //THEN
+        assertEquals(3, requests.size());
+        assertEquals(Arrays.asList(1000, 1000, 500), requests.stream().map(r -> r.getKeys().size()).sorted(Comparator.reverseOrder()).collect(toList()));
+        assertEquals(2499, result.getSucceeded().size());
+        assertEquals(Paths.get("dir/5"), result.getFailed().keySet().iterator().next());
+        assertFalse(result.isComplete());
+    }
+
+    @Test
+    public void testMoveAll_onlyDeletesCopiedObjects() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(10);
+        when(s3.getObjectMetadata(anyString(), anyString())).thenReturn(metadata);
+        when(s3.copyObject("bucket", "in/bad", "bucket", "out/bad")).thenThrow(new AmazonS3Exception("boom"));
+        ArgumentCaptor<DeleteObjectsRequest> request = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        when(s3.deleteObjects(request.capture())).thenReturn(new DeleteObjectsResult(Arrays.asList()));
+
+        //WHEN
+        BatchResult result = new S3FileSystem(s3, "bucket").moveAll(Arrays.asList(Paths.get("in/a"), Paths.get("in/bad"), Paths.get("in/b")), Paths.get("out"));
+
+        //THEN
+        verify(s3).copyObject("bucket", "in/a", "bucket", "out/a");
+        verify(s3).copyObject("bucket", "in/b", "bucket", "out/b");
+        assertEquals(Arrays.asList("in/a", "in/b"), request.getValue().getKeys().stream().map(DeleteObjectsRequest.KeyVersion::getKey).collect(toList()));
+        assertEquals(Arrays.asList(Paths.get("in/a"), Paths.get("in/b")), result.getSucceeded());
+        assertTrue(result.getFailed().containsKey(Paths.get("in/bad")));
+    }
+
+    @Test
+    public void testMove_largeObjectsAreCopiedInParts() throws Exception {
+        //GIVEN
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(25 * 1024 * 1024);
+        metadata.setHeader("ETag", "etag");
+        when(s3.getObjectMetadata("bucket", "in/big")).thenReturn(metadata);
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("upload-id");
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+        List<CopyPartRequest> parts = new CopyOnWriteArrayList<>();
+        when(s3.copyPart(any(CopyPartRequest.class))).thenAnswer(invocation -> {
+            CopyPartRequest request = (CopyPartRequest) invocation.getArguments()[0];
+            parts.add(request);
+            CopyPartResult result = new CopyPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withCopyPartSize(10 * 1024 * 1024));
+
+        //WHEN
+        fileSystem.move(Paths.get("in/big"), Paths.get("out"));
+
+        //THEN
+        List<CopyPartRequest> sorted = parts.stream().sorted(Comparator.comparing(CopyPartRequest::getPartNumber)).collect(toList());
+        assertEquals(Arrays.asList(0L, 10L * 1024 * 1024, 20L * 1024 * 1024), sorted.stream().map(CopyPartRequest::getFirstByte).collect(toList()));
+        assertEquals(25L * 1024 * 1024 - 1, (long) sorted.get(2).getLastByte());
+        assertEquals("out/big", sorted.get(0).getDestinationKey());
+        assertEquals(Arrays.asList("etag"), sorted.get(0).getMatchingETagConstraints());
+        ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+        verify(s3).completeMultipartUpload(complete.capture());
+        assertEquals(Arrays.asList("etag-1", "etag-2", "etag-3"), complete.getValue().getPartETags().stream().map(PartETag::getETag).collect(toList()));
+        verify(s3, never()).copyObject(anyString(), anyString(), anyString(), anyString());
+        verify(s3).deleteObject("bucket", "in/big");
+    }
+
+    @Test
+    public void testRead_issuesSingleRangedGet() throws Exception {
+        //GIVEN
+        byte[] content = "0123456789abcdefghij".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket");
+
+        //WHEN
+        ByteBuffer middle = fileSystem.read(Paths.get("some/key"), 5, 4);
+        ByteBuffer tail = fileSystem.read(Paths.get("some/key"), 18, 10);
+
+        //THEN
+        assertEquals("5678", new String(middle.array(), middle.position(), middle.remaining()));
+        assertEquals("ij", new String(tail.array(), tail.position(), tail.remaining()));
+        ArgumentCaptor<GetObjectRequest> request = ArgumentCaptor.forClass(GetObjectRequest.class);
+        verify(s3, times(2)).getObject(request.capture());
+        assertArrayEquals(new long[]{5, 8}, request.getAllValues().get(0).getRange());
+    }
+
+    @Test
+    public void testRead_sizesBufferFromServedRange() throws Exception {
+        //GIVEN
+        byte[] content = "0123456789abcdefghij".getBytes();
+        S3FileSystem fileSystem = new S3FileSystem(rangedS3(content), "bucket");
+
+        //WHEN
+        ByteBuffer tail = fileSystem.read(Paths.get("some/key"), 18, Integer.MAX_VALUE);
+
+        //THEN
+        assertEquals("ij", new String(tail.array(), tail.position(), tail.remaining()));
+        assertTrue(tail.capacity() <= content.length);
+    }
+
+    @Test
+    public void testReadChannel_coalescesSmallReads() throws Exception {
+        //GIVEN
+        byte[] content = "0123456789abcdefghij".getBytes();
+        AmazonS3 s3 = rangedS3(content);
+        S3FileSystem fileSystem = new S3FileSystem(s3, "bucket", S3Settings.DEFAULTS.withRangedReadBlockSize(8));
+
+        //WHEN
+        StringBuilder read = new StringBuilder();
+        try (SeekableByteChannel channel = fileSystem.readChannel(Paths.get("some/key"))) {
+            channel.position(10);
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            for (int i = 0; i < 4; i++) {
+                buffer.clear();
+                channel.read(buffer);
+                read.append(new String(buffer.array(), 0, buffer.position()));
+            }
+            assertEquals(20, channel.size());
+        }
+
+        //THEN
+        assertEquals("abcdefgh", read.toString());
+        verify(s3, times(1)).getObject(any(GetObjectRequest.class));
+    }
+
+    /**
+     * A bucket holding the keys, listed the way S3 lists them: by prefix, after a marker, rolled up at the delimiter
+     * and at most pageSize entries to a page.
+     */
+    static AmazonS3 bucketS3(List<String> keys, int pageSize, List<ListObjectsRequest> requests) {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        when(s3.listObjects(any(ListObjectsRequest.class))).thenAnswer(invocation -> {
+            ListObjectsRequest request = (ListObjectsRequest) invocation.getArguments()[0];
+            requests.add(request);
+            return page(keys, request.getPrefix(), request.getDelimiter(), request.getMarker(), pageSize);
+        });
+        when(s3.listNextBatchOfObjects(any(ObjectListing.class))).thenAnswer(invocation -> {
+            ObjectListing previous = (ObjectListing) invocation.getArguments()[0];
+            return page(keys, previous.getPrefix(), previous.getDelimiter(), previous.getNextMarker(), pageSize);
+        });
+        return s3;
+    }
+
+    private static ObjectListing page(List<String> keys, String prefix, String delimiter, String marker, int pageSize) {
+        ObjectListing listing = new ObjectListing();
+        listing.setPrefix(prefix);
+        listing.setDelimiter(delimiter);
+        int count = 0;
+        String last = null;
+        for (String key : keys.stream().sorted().collect(toList())) {
+            if (!key.startsWith(prefix == null ? "" : prefix)) {
+                continue;
+            }
+            int rollUp = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            String entry = rollUp < 0 ? key : key.substring(0, rollUp + 1);
+            if ((marker != null && entry.compareTo(marker) <= 0) || entry.equals(last)) {
+                continue;
+            }
+            if (count == pageSize) {
+                listing.setTruncated(true);
+                listing.setNextMarker(last);
+                break;
+            }
+            if (rollUp < 0) {
+                S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setKey(key);
+                summary.setSize(key.length());
+                summary.setETag("etag-" + key);
+                summary.setLastModified(new Date(1000));
+                listing.getObjectSummaries().add(summary);
+            } else {
+                listing.getCommonPrefixes().add(entry);
+            }
+            count++;
+            last = entry;
+        }
+        return listing;
+    }
+
+    static ObjectListing listing(boolean truncated, String... keys) {
+        ObjectListing listing = new ObjectListing();
+        listing.setTruncated(truncated);
+        for (String key : keys) {
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(key);
+            listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+    }
+
+    static AmazonS3 multipartS3(int failingPart) {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+        initiated.setUploadId("upload-id");
+        when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+        when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+            UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+            if (request.getPartNumber() == failingPart) {
+                throw new AmazonS3Exception("boom");
+            }
+            UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag("etag-" + request.getPartNumber());
+            return result;
+        });
+        return s3;
+    }
+
+    static AmazonS3 rangedS3(byte[] content) {
+        AmazonS3 s3 = mock(AmazonS3.class);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(content.length);
+        metadata.setHeader("ETag", "etag");
+        when(s3.getObjectMetadata(anyString(), anyString())).thenReturn(metadata);
+        when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+            long[] range = ((GetObjectRequest) invocation.getArguments()[0]).getRange();
+            int end = range.length > 1 ? (int) Math.min(range[1] + 1, content.length) : content.length;
+            return s3Object(content, new ByteArrayInputStream(Arrays.copyOfRange(content, (int) range[0], end)), "etag");
+        });
+        return s3;
+    }
+
+    static S3Object s3Object(byte[] fullContent, InputStream stream, String eTag) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(fullContent.length);
+        metadata.setHeader("ETag", eTag);
+        S3Object object = new S3Object();
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new S3ObjectInputStream(stream, null));
+        return object;
+    }
+
+    private static InputStream failingAfter(byte[] content, int failAt) {
+        return new InputStream() {
+            int position = 0;
+
+            @Override
+            public int read() throws IOException {
+                if (position == failAt) {
+                    throw new SocketException("Connection reset");
+                }
+                return content[position++];
+            }
+        };
+    }
+
+    private static String md5Hex(String content) throws Exception {
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("MD5").digest(content.getBytes()));
+    }
+}
@@ -0,0 +1,215 @@
+package com.flightstats.filesystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteBackFileSystemTest {
+    private Path staging;
+    private InMemoryFileSystem remote;
+    private CountDownLatch uploadsAllowed;
+    private List<Path> uploaded;
+
+    @Before
+    public void setUp() throws Exception {
+        staging = Files.createTempDirectory("staging");
+        remote = new InMemoryFileSystem(1024 * 1024);
+        uploadsAllowed = new CountDownLatch(1);
+        uploaded = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.list(staging).forEach(file -> file.toFile().delete());
+        Files.delete(staging);
+    }
+
+    @Test
+    public void testPendingWritesAreReadableAndUploaded() throws Exception {
+        //GIVEN
+        WriteBackFileSystem fileSystem = new WriteBackFileSystem(gated(), staging, 1, 10);
+        Path file = Paths.get("a/b/file.txt");
+
+        //WHEN
+        fileSystem.saveContent("pending", file);
+
+        //THEN
+        assertFalse(remote.exists(file));
+        assertTrue(fileSystem.exists(file));
+        assertEquals("pending", fileSystem.readContents(file));
+        assertEquals(7, fileSystem.stat(file).get().getSize());
+        assertEquals(3, fileSystem.read(file, 4, Integer.MAX_VALUE).remaining());
+        assertEquals(Collections.singletonList(file), fileSystem.listFiles(Paths.get("a/b")));
+        assertEquals(Collections.singletonList(Paths.get("a/b")), fileSystem.listDirectories(Paths.get("a")));
+        assertEquals(Collections.singletonList(Paths.get("a")), fileSystem.listDirectories(Paths.get("")));
+
+        uploadsAllowed.countDown();
+        fileSystem.close();
+        assertEquals("pending", remote.readContents(file));
+        assertEquals(0, fileSystem.getPendingCount());
+    }
+
+    @Test
+    public void testOverwritesAreCoalesced() throws Exception {
+        //GIVEN
+        WriteBackFileSystem fileSystem = new WriteBackFileSystem(gated(), staging, 1, 10);
+        Path blocker = Paths.get("blocker");
+        Path file = Paths.get("file");
+        fileSystem.saveContent("first", blocker);
+
+        //WHEN
+        for (int i = 0; i < 5; i++) {
+            fileSystem.saveContent("version " + i, file);
+        }
+        uploadsAllowed.countDown();
+        fileSystem.close();
+
+        //THEN
+        assertEquals("version 4", remote.readContents(file));
+        assertEquals(1, Collections.frequency(uploaded, file));
+    }
+
+    @Test
+    public void testResumesFromJournal() throws Exception {
+        //GIVEN
+        WriteBackFileSystem crashed = new WriteBackFileSystem(gated(), staging, 1, 10);
+        crashed.saveContent("old", Paths.get("file"));
+        crashed.saveContent("new", Paths.get("file"));
+        crashed.saveContent("other", Paths.get("other"));
+
+        //WHEN
+        WriteBackFileSystem restarted = new WriteBackFileSystem(remote, staging, 2, 1);
+        restarted.close();
+
+        //THEN
+        assertEquals("new", remote.readContents(Paths.get("file")));
+        assertEquals("other", remote.readContents(Paths.get("other")));
+    }
+
+    @Test
+    public void testLostStagedFileIsReported() throws Exception {
+        //GIVEN
+        WriteBackFileSystem fileSystem = new WriteBackFileSystem(gated(), staging, 1, 10);
+        Path file = Paths.get("file");
+        fileSystem.saveContent("first", Paths.get("blocker"));
+        fileSystem.saveContent("lost", file);
+        for (Path staged : Files.list(staging).collect(toList())) {
+            if (new String(Files.readAllBytes(staged), UTF_8).equals("lost")) {
+                Files.delete(staged);
+            }
+        }
+
+        //WHEN
+        uploadsAllowed.countDown();
+        try {
+            fileSystem.flush();
+            fail("expected the lost upload to be reported");
+        } catch (UncheckedIOException e) {
+            //THEN
+            assertTrue(e.getMessage().contains("file"));
+        }
+        assertEquals(Collections.singleton(file), fileSystem.getFailedUploads().keySet());
+        assertEquals("first", remote.readContents(Paths.get("blocker")));
+        fileSystem.delete(file);
+        fileSystem.close();
+    }
+
+    @Test
+    public void testGivenUpWriteStaysReadable() throws Exception {
+        //GIVEN
+        Path file = Paths.get("a/file");
+        FileSystem broken = new ForwardingFileSystem(remote) {
+            @Override
+            public OutputStream outputStream(Path fileName, String contentType) {
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        //not retried, so the upload is given up at once.
+                        throw new NoSuchFileException(fileName.toString());
+                    }
+                };
+            }
+        };
+        WriteBackFileSystem fileSystem = new WriteBackFileSystem(broken, staging, 1, 10);
+
+        //WHEN
+        fileSystem.saveContent("kept", file);
+        try {
+            fileSystem.flush();
+            fail("expected the upload to be given up");
+        } catch (UncheckedIOException e) {
+            //expected
+        }
+
+        //THEN
+        assertFalse(remote.exists(file));
+        assertTrue(fileSystem.exists(file));
+        assertEquals("kept", fileSystem.readContents(file));
+        assertEquals(4, fileSystem.stat(file).get().getSize());
+        assertEquals(Collections.singletonList(file), fileSystem.listFiles(Paths.get("a")));
+        fileSystem.delete(file);
+        assertFalse(fileSystem.exists(file));
+        fileSystem.close();
+    }
+
+    @Test
+    public void testTransferWaitsForPendingUploadOfDestination() throws Exception {
+        //GIVEN
+        WriteBackFileSystem fileSystem = new WriteBackFileSystem(gated(), staging, 1, 10);
+        Path source = Paths.get("source");
+        Path destination = Paths.get("destination");
+        remote.saveContent("new", source);
+        fileSystem.saveContent("old", destination);
+
+        //WHEN
+        Thread transfer = new Thread(() -> fileSystem.transferTo(source, fileSystem, destination));
+        transfer.start();
+        while (transfer.getState() != Thread.State.WAITING && transfer.getState() != Thread.State.TERMINATED) {
+            Thread.sleep(1);
+        }
+        uploadsAllowed.countDown();
+        transfer.join();
+        fileSystem.close();
+
+        //THEN
+        assertEquals("new", remote.readContents(destination));
+        assertEquals("new", fileSystem.readContents(destination));
+    }
+
+    /**
+     * The remote, with uploads held until uploadsAllowed is released.
+     */
+    private FileSystem gated() {
+        return new ForwardingFileSystem(remote) {
+            @Override
+            public OutputStream outputStream(Path fileName, String contentType) {
+                try {
+                    uploadsAllowed.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                uploaded.add(fileName);
+                return super.outputStream(fileName, contentType);
+            }
+        };
+    }
+}
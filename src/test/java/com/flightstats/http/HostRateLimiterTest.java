@@ -0,0 +1,79 @@
+package com.flightstats.http;
+
+import com.google.common.collect.ImmutableListMultimap;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostRateLimiterTest {
+
+    @Test
+    public void testTryAcquire_bucketsArePerHost() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(0.001);
+
+        assertTrue(limiter.tryAcquire(URI.create("http://one.com/a")));
+        assertFalse(limiter.tryAcquire(URI.create("http://one.com/b")));
+        assertTrue(limiter.tryAcquire(URI.create("http://two.com/a")));
+    }
+
+    @Test
+    public void testTryAcquire_routeOverride() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(0.001).setRate("fast.com", 1000);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(URI.create("http://fast.com/"), 1, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testPause_rejectsUntilPauseExpires() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(1000);
+        URI uri = URI.create("http://paused.com/thing");
+
+        limiter.pause(uri, Duration.ofMillis(200));
+
+        assertFalse(limiter.tryAcquire(uri));
+        assertFalse(limiter.tryAcquire(uri, 10, TimeUnit.MILLISECONDS));
+        assertTrue(limiter.tryAcquire(uri, 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOnResponse_honorsRetryAfterOn429() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(1000);
+        URI uri = URI.create("http://quota.com/thing");
+
+        limiter.onResponse(uri, new Response(429, new byte[0], ImmutableListMultimap.of("Retry-After", "60")));
+
+        assertFalse(limiter.tryAcquire(uri));
+    }
+
+    @Test
+    public void testOnResponse_matchesRetryAfterInAnyCase() throws Exception {
+        HostRateLimiter limiter = new HostRateLimiter(1000);
+        URI uri = URI.create("http://quota.com/thing");
+
+        limiter.onResponse(uri, new Response(503, new byte[0], ImmutableListMultimap.of("retry-after", "60")));
+
+        assertFalse(limiter.tryAcquire(uri));
+    }
+
+    @Test
+    public void testParseRetryAfter() throws Exception {
+        assertEquals(Optional.of(Duration.ofSeconds(120)), HostRateLimiter.parseRetryAfter("120"));
+        assertEquals(Optional.empty(), HostRateLimiter.parseRetryAfter("soon"));
+        assertEquals(Optional.empty(), HostRateLimiter.parseRetryAfter(null));
+
+        String inAMinute = ZonedDateTime.now().plusMinutes(1).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        Duration parsed = HostRateLimiter.parseRetryAfter(inAMinute).get();
+        assertTrue(parsed.getSeconds() > 30 && parsed.getSeconds() <= 60);
+    }
+}
@@ -10,6 +10,7 @@ import com.github.rholder.retry.WaitStrategies;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.io.ByteStreams;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.http.*;
@@ -23,15 +24,20 @@ import org.apache.http.message.BasicHeader;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -405,4 +411,94 @@ public class HttpTemplateTest {
         assertNotNull(seenPost.get());
         assertEquals("multipart/mixed; boundary=fava_00000000-0000-002b-0000-00000000002a; charset=UTF-8", seenPost.get().getFirstHeader("Content-type").getValue());
     }
+
+    @Test
+    public void testCompression_largeRequestBodyIsGzipped() throws Exception {
+        //GIVEN
+        byte[] requestBody = new byte[4096];
+        HttpClient client = mock(HttpClient.class);
+        HttpResponse httpResponse = mock(HttpResponse.class, RETURNS_DEEP_STUBS);
+
+        AtomicReference<byte[]> seenBody = new AtomicReference<>();
+        AtomicReference<HttpPost> seenPost = new AtomicReference<>();
+        when(client.execute(any(HttpPost.class))).thenAnswer(invocation -> {
+            HttpPost post = (HttpPost) invocation.getArguments()[0];
+            seenPost.set(post);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            post.getEntity().writeTo(out);
+            seenBody.set(out.toByteArray());
+            return httpResponse;
+        });
+        when(httpResponse.getStatusLine().getStatusCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(httpResponse.getEntity().getContent()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(httpResponse.getFirstHeader("Content-Encoding")).thenReturn(null);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+
+        HttpTemplate testClass = new HttpTemplate(client, null, dummyRetryer(), null).withCompression(HttpCompression.gzip(1024));
+
+        //WHEN
+        testClass.post(URI.create("http://compress.me"), requestBody, "application/octet-stream");
+
+        //THEN
+        assertEquals("gzip", seenPost.get().getFirstHeader("Content-Encoding").getValue());
+        assertEquals("gzip,deflate", seenPost.get().getFirstHeader("Accept-Encoding").getValue());
+        byte[] inflated = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(seenBody.get())));
+        assertArrayEquals(requestBody, inflated);
+    }
+
+    @Test
+    public void testCompression_smallRequestBodyIsNotGzipped() throws Exception {
+        //GIVEN
+        HttpClient client = mock(HttpClient.class);
+        HttpResponse httpResponse = mock(HttpResponse.class, RETURNS_DEEP_STUBS);
+
+        AtomicReference<HttpPost> seenPost = new AtomicReference<>();
+        when(client.execute(any(HttpPost.class))).thenAnswer(invocation -> {
+            seenPost.set((HttpPost) invocation.getArguments()[0]);
+            return httpResponse;
+        });
+        when(httpResponse.getStatusLine().getStatusCode()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(httpResponse.getEntity().getContent()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        when(httpResponse.getFirstHeader("Content-Encoding")).thenReturn(null);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+
+        HttpTemplate testClass = new HttpTemplate(client, null, dummyRetryer(), null).withCompression(HttpCompression.gzip(1024));
+
+        //WHEN
+        testClass.post(URI.create("http://compress.me"), "tiny".getBytes(), "text/plain");
+
+        //THEN
+        assertNull(seenPost.get().getFirstHeader("Content-Encoding"));
+    }
+
+    @Test
+    public void testCompression_gzippedResponseIsInflated() throws Exception {
+        //GIVEN
+        String body = "{\"some\":\"json\"}";
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write(body.getBytes());
+        }
+
+        HttpClient client = mock(HttpClient.class);
+        HttpResponse httpResponse = mock(HttpResponse.class);
+        StatusLine statusLine = mock(StatusLine.class);
+        HttpEntity entity = mock(HttpEntity.class);
+
+        when(client.execute(isA(HttpGet.class))).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(200);
+        when(entity.getContent()).thenReturn(new ByteArrayInputStream(gzipped.toByteArray()));
+        when(httpResponse.getEntity()).thenReturn(entity);
+        when(httpResponse.getFirstHeader("Content-Encoding")).thenReturn(new BasicHeader("Content-Encoding", "gzip"));
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("Content-Encoding", "gzip")});
+
+        HttpTemplate testClass = new HttpTemplate(client, null, dummyRetryer(), null).withCompression(HttpCompression.responsesOnly());
+
+        //WHEN
+        Response result = testClass.get(URI.create("http://compressed.com"));
+
+        //THEN
+        assertEquals(body, result.getBodyString());
+    }
 }
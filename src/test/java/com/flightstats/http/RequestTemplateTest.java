@@ -0,0 +1,53 @@
+package com.flightstats.http;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+
+public class RequestTemplateTest {
+
+    @Test
+    public void testExpand_positional() throws Exception {
+        RequestTemplate template = new RequestTemplate("http://flights.com/api/", "/v1/flights/{id}/status?date={date}");
+
+        URI uri = template.expand("AA 100", "2017-12-01&x");
+
+        assertEquals("http://flights.com/api/v1/flights/AA%20100/status?date=2017-12-01%26x", uri.toString());
+    }
+
+    @Test
+    public void testExpand_byName() throws Exception {
+        RequestTemplate template = new RequestTemplate("https://host:8443", "things/{kind}/{id}");
+
+        URI uri = template.expand(ImmutableMap.of("id", 42, "kind", "widgets"));
+
+        assertEquals("https://host:8443/things/widgets/42", uri.toString());
+    }
+
+    @Test
+    public void testExpand_noVariables() throws Exception {
+        RequestTemplate template = new RequestTemplate("http://host", "/health");
+
+        assertEquals(URI.create("http://host/health"), template.expand());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExpand_wrongVariableCount() throws Exception {
+        new RequestTemplate("http://host", "/things/{id}").expand();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRelativeBaseIsRejected() throws Exception {
+        new RequestTemplate("/not/absolute", "/things");
+    }
+
+    @Test
+    public void testHeaders_extraOverrideDefaults() throws Exception {
+        RequestTemplate template = new RequestTemplate("http://host", "/things", ImmutableMap.of("a", "1", "b", "2"));
+
+        assertEquals(ImmutableMap.of("a", "1", "b", "3"), template.headers(ImmutableMap.of("b", "3")));
+    }
+}